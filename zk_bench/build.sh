@@ -0,0 +1,3 @@
+rm -fr bin/*
+mkdir -p bin
+javac -d bin -cp "../zookeeper-3.3.2/zookeeper-3.3.2.jar:../zookeeper-3.3.2/lib/*" -sourcepath "src:../zk_lock/src:../zk_tpcp/src:../zk_session/src" $(find src -name "*.java")
@@ -0,0 +1,3 @@
+# usage: ./run.sh <suite> [options]   (./run.sh help lists suites and options)
+# transaction log fsyncs are turned off so numbers reflect the recipes, not the disk
+java -Xms512m -Xmx512m -Dzookeeper.forceSync=no -cp "bin:../zookeeper-3.3.2/zookeeper-3.3.2.jar:../zookeeper-3.3.2/lib/*:src" zk_bench.Main "$@"
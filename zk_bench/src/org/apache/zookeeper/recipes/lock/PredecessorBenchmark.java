@@ -0,0 +1,118 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * Client side cost of one wakeup of a {@link WriteLock} waiter in a queue of
+ * N lock nodes: finding the owner and the predecessor to watch in the
+ * children list getChildren handed over (in hash order).
+ * <ul>
+ * <li>sorted: what WriteLock used to do, a ZNodeName per child in a TreeSet</li>
+ * <li>scan: one pass over the names with {@link ZNodeName#parseSequence}</li>
+ * </ul>
+ * Each operation is the waiter at a random position. Lives in the recipe
+ * package to reach ZNodeName; no zookeeper requests are made.
+ *
+ */
+public class PredecessorBenchmark implements Benchmark {
+    private static final String DIR = "/bench-lock/queue";
+
+    private final int queue;
+    private final boolean sorted;
+
+    private List<String> children;
+    private Random random;
+
+    /**
+     * @param queue lock nodes in the dir (N)
+     * @param sorted true for the former TreeSet lookup
+     */
+    public PredecessorBenchmark(int queue, boolean sorted) {
+        this.queue = queue;
+        this.sorted = sorted;
+    }
+
+    public String getName() {
+        return "writelock.predecessor-" + (sorted ? "sorted" : "scan") + "-n" + queue;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) {
+        children = new ArrayList<String>(queue);
+        random = new Random(42);
+
+        for (int i = 0; i < queue; i++) {
+            // as zookeeper names sequential nodes
+            children.add("x-" + (72057594037927936L + random.nextInt(1000)) + "-" + String.format("%010d", i));
+        }
+
+        Collections.shuffle(children, random);
+    }
+
+    public long run(long deadline, Histogram latency) {
+        long ops = 0;
+
+        while (System.nanoTime() < deadline) {
+            int me = 1 + random.nextInt(queue - 1);
+
+            long start = System.nanoTime();
+            int predecessor = sorted ? sortedLookup(me) : scanLookup(me);
+            latency.record(System.nanoTime() - start);
+
+            if (predecessor != me - 1) {
+                throw new IllegalStateException("Expected predecessor " + (me - 1) + " on " + getName() + ", found " + predecessor);
+            }
+
+            ops++;
+        }
+
+        return ops;
+    }
+
+    public void tearDown() {
+        children = null;
+    }
+
+    /**
+     * The former LockZooKeeperOperation lookup
+     */
+    private int sortedLookup(int me) {
+        SortedSet<ZNodeName> sortedNames = new TreeSet<ZNodeName>();
+        for (String name : children) {
+            sortedNames.add(new ZNodeName(DIR + "/" + name));
+        }
+        ZNodeName idName = new ZNodeName(DIR + "/x-0-" + String.format("%010d", me));
+        String ownerId = sortedNames.first().getName();
+        SortedSet<ZNodeName> lessThanMe = sortedNames.headSet(idName);
+        return ownerId == null ? -1 : lessThanMe.last().getZNodeName();
+    }
+
+    /**
+     * The current LockZooKeeperOperation lookup
+     */
+    private int scanLookup(int me) {
+        String firstChild = null;
+        int firstSequence = Integer.MAX_VALUE;
+        int lastSequence = -1;
+        for (String name : children) {
+            int sequence = ZNodeName.parseSequence(name);
+            if (sequence < firstSequence) {
+                firstSequence = sequence;
+                firstChild = name;
+            }
+            if (sequence < me && sequence > lastSequence) {
+                lastSequence = sequence;
+            }
+        }
+        return firstChild == null ? -1 : lastSequence;
+    }
+}
@@ -0,0 +1,173 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * Reconnection storm on a {@link WriteLock} queue of N nodes: C sessions at
+ * once each lose the answer to the create of their lock node and have to
+ * find out whether it was made.
+ * <ul>
+ * <li>scan: what WriteLock used to do, list the dir and look for our prefix</li>
+ * <li>probe: {@link WriteLock#findLostNode}, exists on the few names the
+ * create could have got</li>
+ * </ul>
+ * The recorded latency is the lookup alone. Lives in the recipe package to
+ * reach the lookups.
+ *
+ */
+public class RecoveryBenchmark implements Benchmark {
+    private static final String ROOT = "/bench-recovery";
+    private static final String DIR = ROOT + "/queue";
+
+    private final int queue;
+    private final int clients;
+    private final boolean scan;
+
+    private ZooKeeper filler;
+    private List<ZooKeeper> sessions;
+    private List<Recoverer> recoverers;
+    private ExecutorService threadPool;
+
+    /**
+     * @param queue lock nodes of other clients in the dir (N)
+     * @param clients sessions recovering at once (C)
+     * @param scan true for the former full listing
+     */
+    public RecoveryBenchmark(int queue, int clients, boolean scan) {
+        this.queue = queue;
+        this.clients = clients;
+        this.scan = scan;
+    }
+
+    public String getName() {
+        return "writelock.recovery-" + (scan ? "scan" : "probe") + "-n" + queue + "-c" + clients;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        // the waiters already queued are not what is measured
+        filler = server.connect(new OperationCounters());
+        filler.create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        filler.create(DIR, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        fill();
+
+        sessions = new ArrayList<ZooKeeper>(clients);
+        recoverers = new ArrayList<Recoverer>(clients);
+        threadPool = Executors.newFixedThreadPool(clients);
+
+        for (int i = 0; i < clients; i++) {
+            ZooKeeper zk = server.connect(counters);
+            sessions.add(zk);
+            recoverers.add(new Recoverer(zk, new WriteLock(zk, DIR, null)));
+        }
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(clients);
+
+        for (Recoverer r : recoverers) {
+            r.deadline = deadline;
+            r.latency = latency;
+            results.add(threadPool.submit(r));
+        }
+
+        long ops = 0;
+        for (Future<Long> f : results) {
+            ops += f.get();
+        }
+
+        return ops;
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        for (ZooKeeper zk : sessions) {
+            zk.close();
+        }
+        filler.close();
+    }
+
+    /**
+     * Queues N ephemeral nodes of the filler session, pipelined
+     */
+    private void fill() throws Exception {
+        final CountDownLatch done = new CountDownLatch(queue);
+        final int[] failures = new int[1];
+
+        for (int i = 0; i < queue; i++) {
+            filler.create(DIR + "/x-" + filler.getSessionId() + "-", new byte[] {0x12, 0x34},
+                          ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL, new StringCallback() {
+                public void processResult(int rc, String path, Object ctx, String name) {
+                    if (rc != KeeperException.Code.OK.intValue()) {
+                        synchronized (failures) {
+                            failures[0]++;
+                        }
+                    }
+                    done.countDown();
+                }
+            }, null);
+        }
+        done.await();
+
+        if (failures[0] > 0) {
+            throw new IllegalStateException(failures[0] + " of " + queue + " queue nodes not created");
+        }
+    }
+
+    /**
+     * Loops over create, lookup as if the create answer was lost, delete
+     */
+    private class Recoverer implements Callable<Long> {
+        private final ZooKeeper zk;
+        private final WriteLock lock;
+
+        volatile long deadline;
+        volatile Histogram latency;
+
+        Recoverer(ZooKeeper zk, WriteLock lock) {
+            this.zk = zk;
+            this.lock = lock;
+        }
+
+        public Long call() throws Exception {
+            long ops = 0;
+            String prefix = lock.getOwnPrefix();
+
+            while (System.nanoTime() < deadline) {
+                int floor = zk.exists(DIR, false).getCversion();
+                String created = zk.create(DIR + "/" + prefix, null,
+                                           ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+
+                long start = System.nanoTime();
+                String found = scan ? lock.findNodeByScan(prefix) : lock.findLostNode(prefix, floor);
+                latency.record(System.nanoTime() - start);
+
+                if (!created.equals(found)) {
+                    throw new IllegalStateException("Expected " + created + " on " + getName() + ", found " + found);
+                }
+
+                zk.delete(created, -1);
+                ops++;
+            }
+
+            return ops;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.zookeeper.KeeperException;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * N clients caught by the same OUTAGE_MILLIS connection loss, retrying
+ * through {@link ProtocolSupport#retryOperation} with a given policy:
+ * <ul>
+ * <li>linear: the former fixed pattern (10 attempts, 50 ms steps)</li>
+ * <li>jitter: {@link ExponentialBackoffRetry}, 10 to 500 ms, 20 retries</li>
+ * <li>budget: jitter with a {@link RetryBudget} per client of 4 retries, 10/s</li>
+ * </ul>
+ * Each operation is one client getting through; the recorded latency is
+ * from the end of the outage until it did. The peak retry load (retries in
+ * the busiest millisecond) and give ups show after the results.
+ * The operation fails in memory, no zookeeper requests are made.
+ *
+ */
+public class RetryStormBenchmark implements Benchmark {
+    public enum Mode {
+        LINEAR,
+        JITTER,
+        BUDGET
+    }
+
+    private static final long OUTAGE_MILLIS = 300L;
+    private static final int WINDOW_MILLIS = 1;
+
+    private final int clients;
+    private final Mode mode;
+
+    private ExecutorService threadPool;
+    private RetryMetrics metrics;
+    private int peak;
+
+    /**
+     * @param clients clients hit by the outage (N)
+     * @param mode the retry settings
+     */
+    public RetryStormBenchmark(int clients, Mode mode) {
+        this.clients = clients;
+        this.mode = mode;
+    }
+
+    public String getName() {
+        return "retry." + mode.name().toLowerCase() + "-" + clients;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) {
+        threadPool = Executors.newFixedThreadPool(clients);
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        long ops = 0;
+        peak = 0;
+        // warmup runs too, only the last run is reported
+        metrics = new RetryMetrics();
+
+        // one outage per round, until time is up
+        while (System.nanoTime() < deadline) {
+            final long outageEnd = System.nanoTime() + OUTAGE_MILLIS * 1000000L;
+            final long outageStart = System.nanoTime();
+            final AtomicIntegerArray load = new AtomicIntegerArray(5000);
+            List<Future<Long>> results = new ArrayList<Future<Long>>(clients);
+
+            for (int i = 0; i < clients; i++) {
+                RetryBudget budget = mode == Mode.BUDGET ? new RetryBudget(4, 10) : null;
+                final Client client = new Client(policy(), budget, metrics);
+                results.add(threadPool.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        try {
+                            client.run(outageStart, outageEnd, load);
+                            return System.nanoTime() - outageEnd;
+                        } catch (KeeperException.ConnectionLossException e) {
+                            return -1L;
+                        }
+                    }
+                }));
+            }
+
+            for (Future<Long> f : results) {
+                long recovery = f.get();
+                if (recovery >= 0) {
+                    latency.record(recovery);
+                    ops++;
+                }
+            }
+
+            for (int w = 0; w < load.length(); w++) {
+                peak = Math.max(peak, load.get(w));
+            }
+
+            // rounds where everyone gave up last as long as the others
+            long left = outageEnd - System.nanoTime();
+            if (left > 0) {
+                Thread.sleep(left / 1000000L);
+            }
+        }
+
+        return ops;
+    }
+
+    public void tearDown() {
+        threadPool.shutdownNow();
+        System.out.println(String.format("  %s: peak %d retries/%dms, %s",
+                                         getName(), peak, WINDOW_MILLIS, metrics));
+    }
+
+    private RetryPolicy policy() {
+        return mode == Mode.LINEAR ? new LinearRetry(10, 50) : new ExponentialBackoffRetry(10, 500, 20);
+    }
+
+    /**
+     * A protocol whose only operation fails until the outage ends
+     */
+    private static class Client extends ProtocolSupport {
+        Client(RetryPolicy policy, RetryBudget budget, RetryMetrics metrics) {
+            super(null);
+            setRetryPolicy(policy);
+            setRetryBudget(budget);
+            setRetryMetrics(metrics);
+        }
+
+        void run(final long outageStart, final long outageEnd, final AtomicIntegerArray load)
+            throws KeeperException, InterruptedException {
+            retryOperation(new ZooKeeperOperation() {
+                private boolean retry;
+
+                public boolean execute() throws KeeperException {
+                    long now = System.nanoTime();
+                    int window = (int) ((now - outageStart) / (WINDOW_MILLIS * 1000000L));
+                    if (retry && window < load.length()) {
+                        load.incrementAndGet(window);
+                    }
+                    retry = true;
+                    if (now < outageEnd) {
+                        throw new KeeperException.ConnectionLossException();
+                    }
+                    return true;
+                }
+            });
+        }
+    }
+}
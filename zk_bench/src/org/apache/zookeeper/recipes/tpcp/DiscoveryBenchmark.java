@@ -0,0 +1,168 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.zookeeper.data.Stat;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * Client side cost of one children-changed event on the transaction znode
+ * as history grows. The list starts with H transactions (as getChildren
+ * would hand them, in hash order) and each operation is one event:
+ * <ul>
+ * <li>full: what TransactionGroup used to do, sort every name and parse every ID</li>
+ * <li>incremental: one transaction was created, {@link TransactionDiscovery}
+ * names it from the cversion</li>
+ * <li>reaped: an old transaction was deleted and a new one created, the
+ * cversion doesn't tell and {@link TransactionDiscovery} scans the names</li>
+ * </ul>
+ * Full and reaped keep history at H, incremental lets it grow by one per
+ * operation. The getChildren payload itself still grows with history, that's
+ * not measured here. Lives in the recipe package to reach
+ * {@link TransactionDiscovery}; no zookeeper requests are made.
+ *
+ */
+public class DiscoveryBenchmark implements Benchmark {
+    /**
+     * What happened to the children between two events
+     */
+    public enum Mode {
+        FULL,
+        INCREMENTAL,
+        REAPED
+    }
+
+    private final int history;
+    private final Mode mode;
+
+    private List<String> transactions;
+    private Random random;
+    private TransactionDiscovery discovery;
+    private long fullScanLastID;
+    private int cversion;
+
+    /**
+     * @param history transactions already under the transaction znode (H)
+     * @param mode what each event does
+     */
+    public DiscoveryBenchmark(int history, Mode mode) {
+        this.history = history;
+        this.mode = mode;
+    }
+
+    public String getName() {
+        return "tpcp.discovery-" + mode.name().toLowerCase() + "-h" + history;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) {
+        transactions = new ArrayList<String>(history);
+        random = new Random(42);
+
+        for (cversion = 0; cversion < history; cversion++) {
+            transactions.add(name(cversion));
+        }
+
+        // the server keeps children in a hash set, they never come sorted
+        Collections.shuffle(transactions, random);
+
+        discovery = new TransactionDiscovery();
+        discovery.skip(transactions, stat());
+        fullScanLastID = cversion - 1;
+    }
+
+    public long run(long deadline, Histogram latency) {
+        long ops = 0;
+
+        while (System.nanoTime() < deadline) {
+            List<String> children;
+            int found;
+
+            if (mode == Mode.INCREMENTAL) {
+                transactions.add(name(cversion++));
+
+                // discovery doesn't change the list
+                children = transactions;
+            }
+            else {
+                // a delete bumps cversion too
+                cversion++;
+                transactions.set(random.nextInt(history), name(cversion++));
+
+                // the full scan sorts it
+                children = new ArrayList<String>(transactions);
+            }
+
+            Stat stat = stat();
+
+            long start = System.nanoTime();
+
+            if (mode == Mode.FULL) {
+                found = fullScan(children);
+            }
+            else {
+                found = discovery.discover(children, stat).size();
+            }
+
+            latency.record(System.nanoTime() - start);
+
+            if (found != 1) {
+                throw new IllegalStateException("Expected one new transaction on " + getName() + ", found " + found);
+            }
+
+            ops++;
+        }
+
+        return ops;
+    }
+
+    public void tearDown() {
+        transactions = null;
+        discovery = null;
+    }
+
+    /**
+     * The former TransactionGroup.updateTransactions loop
+     */
+    private int fullScan(List<String> children) {
+        int found = 0;
+        long tid = -1;
+
+        BaseTransaction.sortTransactionList(children);
+
+        for (String t : children) {
+            tid = BaseTransaction.getTransactionID(t);
+
+            if (tid > fullScanLastID) {
+                found++;
+            }
+        }
+
+        if (tid > fullScanLastID) {
+            fullScanLastID = tid;
+        }
+
+        return found;
+    }
+
+    /**
+     * Transaction znode stat as getChildren would return it
+     */
+    private Stat stat() {
+        Stat stat = new Stat();
+        stat.setCversion(cversion);
+        stat.setNumChildren(transactions.size());
+        return stat;
+    }
+
+    private static String name(int sequence) {
+        // as zookeeper names sequential nodes
+        return BaseTransaction.transactionNodePrefix + String.format("%010d", sequence);
+    }
+}
@@ -0,0 +1,36 @@
+package zk_bench;
+
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * A benchmark run by {@link BenchmarkRunner}.
+ *
+ */
+public interface Benchmark {
+    /**
+     * Name printed on the report.
+     */
+    public String getName();
+
+    /**
+     * Opens sessions and creates whatever the benchmark needs.
+     * @param server running server
+     * @param counters where every client of this benchmark accounts its requests
+     */
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception;
+
+    /**
+     * Runs operations until the given deadline.
+     * @param deadline System.nanoTime() at which to stop
+     * @param latency where each operation records its latency
+     * @return number of operations completed
+     */
+    public long run(long deadline, Histogram latency) throws Exception;
+
+    /**
+     * Releases everything acquired on setUp.
+     */
+    public void tearDown() throws Exception;
+}
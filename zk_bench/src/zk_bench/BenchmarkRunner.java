@@ -0,0 +1,89 @@
+package zk_bench;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * Runs a {@link Benchmark} against an embedded server: one warm-up round
+ * whose numbers are thrown away, then a measured round.
+ *
+ */
+public class BenchmarkRunner {
+    private final long warmupNanos;
+    private final long measureNanos;
+    private final PrintStream out;
+    private boolean headerPrinted;
+
+    /**
+     * @param warmupSeconds how long to run before measuring
+     * @param measureSeconds how long to measure
+     * @param out where to print reports
+     */
+    public BenchmarkRunner(int warmupSeconds, int measureSeconds, PrintStream out) {
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.measureNanos = TimeUnit.SECONDS.toNanos(measureSeconds);
+        this.out = out;
+    }
+
+    /**
+     * Runs a benchmark on a fresh server and prints its report line.
+     * @param benchmark benchmark to run
+     * @throws Exception whatever the benchmark throws
+     */
+    public void run(Benchmark benchmark) throws Exception {
+        EmbeddedServer server = new EmbeddedServer();
+        OperationCounters counters = new OperationCounters();
+        Histogram latency = new Histogram();
+
+        server.start();
+
+        try {
+            benchmark.setUp(server, counters);
+
+            try {
+                benchmark.run(System.nanoTime() + warmupNanos, latency);
+
+                latency.reset();
+                counters.reset();
+
+                long start = System.nanoTime();
+                long ops = benchmark.run(start + measureNanos, latency);
+                long elapsed = System.nanoTime() - start;
+
+                report(benchmark.getName(), ops, elapsed, latency, counters);
+            }
+            finally {
+                benchmark.tearDown();
+            }
+        }
+        finally {
+            server.shutdown();
+        }
+    }
+
+    private void report(String name, long ops, long elapsedNanos, Histogram latency, OperationCounters counters) {
+        if (!headerPrinted) {
+            out.println(String.format("%-32s %10s %12s %10s %10s %10s %8s %8s %8s %8s",
+                                      "benchmark", "ops", "ops/s", "p50(us)", "p99(us)", "p999(us)",
+                                      "rtt/op", "rd/op", "wr/op", "watch/op"));
+            headerPrinted = true;
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        double perOp = ops == 0 ? 0 : 1.0 / ops;
+
+        out.println(String.format("%-32s %10d %12.1f %10.1f %10.1f %10.1f %8.2f %8.2f %8.2f %8.2f",
+                                  name, ops, ops / seconds,
+                                  latency.getPercentile(50) / 1e3,
+                                  latency.getPercentile(99) / 1e3,
+                                  latency.getPercentile(99.9) / 1e3,
+                                  counters.getRoundTrips() * perOp,
+                                  counters.getReads() * perOp,
+                                  counters.getWrites() * perOp,
+                                  counters.getWatches() * perOp));
+    }
+}
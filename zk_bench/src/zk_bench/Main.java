@@ -0,0 +1,305 @@
+package zk_bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.recipes.lock.PredecessorBenchmark;
+import org.apache.zookeeper.recipes.lock.RecoveryBenchmark;
+import org.apache.zookeeper.recipes.lock.RetryStormBenchmark;
+import org.apache.zookeeper.recipes.tpcp.DiscoveryBenchmark;
+
+import zk_bench.lock.AsyncLockBenchmark;
+import zk_bench.lock.HierarchicalLockBenchmark;
+import zk_bench.lock.LeaseBenchmark;
+import zk_bench.lock.LocalLockBenchmark;
+import zk_bench.lock.MultiLockBenchmark;
+import zk_bench.lock.ReadWriteLockBenchmark;
+import zk_bench.lock.WriteLockBenchmark;
+import zk_bench.session.SessionPoolBenchmark;
+import zk_bench.tpcp.TransactionBenchmark;
+import zk_bench.tpcp.TransactionBenchmark.Scenario;
+
+/**
+ * Benchmark entry point. Each suite runs one or more benchmarks, each on
+ * a freshly started embedded server.
+ *
+ */
+public class Main {
+    private static int threads = 8;
+    private static int warmup = 5;
+    private static int seconds = 10;
+    private static int members = 0;
+
+    /** group sizes swept when -members is not given */
+    private static final int[] GROUP_SIZES = { 2, 4, 8, 16, 32, 64 };
+
+    /** lease hold limits swept by the lock-lease suite, 0 is no lease */
+    private static final int[] LEASE_HOLDS = { 0, 16, 256 };
+
+    /** pause between lock/unlock cycles in the lock-lease suite */
+    private static final long LEASE_THINK_MICROS = 2000L;
+
+    /** locks taken together in the lock-multi suite */
+    private static final int[] MULTI_LOCK_SIZES = { 2, 8 };
+
+    /** clients caught by the simulated outage of the lock-retry suite */
+    private static final int RETRY_CLIENTS = 64;
+
+    /** lock queue lengths swept by the lock-recovery suite */
+    private static final int[] RECOVERY_QUEUE_SIZES = { 1000, 10000 };
+
+    /** lock queue lengths swept by the lock-scan suite */
+    private static final int[] QUEUE_SIZES = { 100, 1000, 10000 };
+
+    /** lock users swept by the lock-async suite */
+    private static final int[] ASYNC_WAITERS = { 256, 1024 };
+
+    /** lock users of the session suite */
+    private static final int POOL_COMPONENTS = 64;
+
+    /** sessions shared by the pooled runs of the session suite, 0 is a session each */
+    private static final int[] POOL_SESSIONS = { 0, 1, 2, 4 };
+
+    /** read share (percent) of the operations in the rwlock suite */
+    private static final int[] READ_PERCENTS = { 90, 99 };
+
+    /** transaction history sizes swept by the tpcp-discovery suite */
+    private static final int[] HISTORY_SIZES = { 1000, 10000, 100000, 1000000 };
+
+    /** transactions kept in flight by the tpcp-async suite */
+    private static final int PIPELINE_WINDOW = 64;
+
+    /** queries kept in flight by the tpcp-group suite, light and heavy load */
+    private static final int[] GROUP_COMMIT_WINDOWS = { 4, 256 };
+
+    /** most queries per batch in the tpcp-group suite */
+    private static final int GROUP_COMMIT_BATCH = 64;
+
+    /** time a prepare's fsync takes in the tpcp-prepare suite (us) */
+    private static final long PREPARE_FSYNC_MICROS = 2000L;
+
+    /** worker threads per member swept by the tpcp-workers suite */
+    private static final int[] WORKER_THREADS = { 4, 16, 64 };
+
+    /** transactions kept in flight by the tpcp-workers suite */
+    private static final int WORKER_WINDOW = 256;
+
+    /** time a handler call takes in the tpcp-workers suite (us) */
+    private static final long WORKER_MICROS = 10000L;
+
+    /** ordering keys of the tpcp-workers suite's ordered runs */
+    private static final int WORKER_KEYS = 16;
+
+    /** batch delays swept by the tpcp-group suite (us), 0 waits for the previous batch */
+    private static final long[] GROUP_COMMIT_DELAYS = { 0, 200, 1000, 5000 };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args[0].equals("help")) {
+            usage();
+            System.exit(1);
+        }
+
+        String suite = args[0];
+
+        for (int i = 1; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage();
+                System.exit(1);
+            }
+
+            String opt = args[i];
+            int value = Integer.parseInt(args[++i]);
+
+            if (opt.equals("-threads")) {
+                threads = value;
+            }
+            else if (opt.equals("-warmup")) {
+                warmup = value;
+            }
+            else if (opt.equals("-seconds")) {
+                seconds = value;
+            }
+            else if (opt.equals("-members")) {
+                members = value;
+            }
+            else {
+                usage();
+                System.exit(1);
+            }
+        }
+
+        List<Benchmark> benchmarks = suite(suite);
+
+        if (benchmarks.isEmpty()) {
+            usage();
+            System.exit(1);
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, seconds, System.out);
+
+        for (Benchmark b : benchmarks) {
+            runner.run(b);
+        }
+
+        System.exit(0);
+    }
+
+    private static List<Benchmark> suite(String name) {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        boolean all = name.equals("all");
+
+        if (all || name.equals("lock")) {
+            benchmarks.add(WriteLockBenchmark.uncontended());
+            benchmarks.add(WriteLockBenchmark.contended(threads));
+            benchmarks.add(WriteLockBenchmark.contendedTryLock(threads));
+            benchmarks.add(WriteLockBenchmark.independent(threads));
+        }
+
+        if (all || name.equals("lock-local")) {
+            benchmarks.add(WriteLockBenchmark.contendedTryLock(threads));
+            benchmarks.add(new LocalLockBenchmark(1, threads));
+            benchmarks.add(new LocalLockBenchmark(2, threads / 2));
+        }
+
+        if (all || name.equals("lock-lease")) {
+            for (int holds : LEASE_HOLDS) {
+                benchmarks.add(new LeaseBenchmark(1, holds, 0));
+            }
+            for (int holds : LEASE_HOLDS) {
+                benchmarks.add(new LeaseBenchmark(threads, holds, 0));
+            }
+            for (int holds : LEASE_HOLDS) {
+                benchmarks.add(new LeaseBenchmark(2, holds, LEASE_THINK_MICROS));
+            }
+        }
+
+        if (all || name.equals("lock-multi")) {
+            for (int k : MULTI_LOCK_SIZES) {
+                benchmarks.add(new MultiLockBenchmark(threads, k, false));
+                benchmarks.add(new MultiLockBenchmark(threads, k, true));
+            }
+        }
+
+        if (all || name.equals("lock-tree")) {
+            benchmarks.add(new HierarchicalLockBenchmark(threads, false));
+            benchmarks.add(new HierarchicalLockBenchmark(threads, true));
+        }
+
+        if (all || name.equals("lock-scan")) {
+            for (int n : QUEUE_SIZES) {
+                benchmarks.add(new PredecessorBenchmark(n, true));
+                benchmarks.add(new PredecessorBenchmark(n, false));
+            }
+        }
+
+        if (all || name.equals("lock-recovery")) {
+            for (int n : RECOVERY_QUEUE_SIZES) {
+                benchmarks.add(new RecoveryBenchmark(n, threads, true));
+                benchmarks.add(new RecoveryBenchmark(n, threads, false));
+            }
+        }
+
+        if (all || name.equals("lock-retry")) {
+            for (RetryStormBenchmark.Mode mode : RetryStormBenchmark.Mode.values()) {
+                benchmarks.add(new RetryStormBenchmark(RETRY_CLIENTS, mode));
+            }
+        }
+
+        if (all || name.equals("lock-async")) {
+            for (int w : ASYNC_WAITERS) {
+                benchmarks.add(new AsyncLockBenchmark(w, false));
+                benchmarks.add(new AsyncLockBenchmark(w, true));
+            }
+        }
+
+        if (all || name.equals("session")) {
+            for (int p : POOL_SESSIONS) {
+                benchmarks.add(new SessionPoolBenchmark(POOL_COMPONENTS, p));
+            }
+        }
+
+        if (all || name.equals("rwlock")) {
+            for (int readPercent : READ_PERCENTS) {
+                benchmarks.add(ReadWriteLockBenchmark.exclusive(threads, readPercent));
+                benchmarks.add(ReadWriteLockBenchmark.readWrite(threads, readPercent));
+            }
+        }
+
+        for (Scenario scenario : Scenario.values()) {
+            if (all || name.equals("tpcp") || name.equals("tpcp-" + scenario.name().toLowerCase())) {
+                for (int k : members > 0 ? new int[] { members } : GROUP_SIZES) {
+                    benchmarks.add(new TransactionBenchmark(k, threads, scenario));
+                }
+            }
+        }
+
+        if (all || name.equals("tpcp-async")) {
+            for (int k : members > 0 ? new int[] { members } : GROUP_SIZES) {
+                benchmarks.add(TransactionBenchmark.pipelined(k, PIPELINE_WINDOW));
+            }
+        }
+
+        if (all || name.equals("tpcp-group")) {
+            int k = members > 0 ? members : 4;
+            for (int w : GROUP_COMMIT_WINDOWS) {
+                benchmarks.add(TransactionBenchmark.pipelined(k, w));
+                for (long delay : GROUP_COMMIT_DELAYS) {
+                    benchmarks.add(TransactionBenchmark.groupCommit(k, w, GROUP_COMMIT_BATCH, delay));
+                }
+            }
+        }
+
+        if (all || name.equals("tpcp-prepare")) {
+            for (int k : members > 0 ? new int[] { members } : new int[] { 4 }) {
+                benchmarks.add(TransactionBenchmark.logged(k, PIPELINE_WINDOW, PREPARE_FSYNC_MICROS, false));
+                benchmarks.add(TransactionBenchmark.logged(k, PIPELINE_WINDOW, PREPARE_FSYNC_MICROS, true));
+            }
+        }
+
+        if (all || name.equals("tpcp-workers")) {
+            int k = members > 0 ? members : 4;
+            for (int t : WORKER_THREADS) {
+                benchmarks.add(TransactionBenchmark.workers(k, WORKER_WINDOW, WORKER_MICROS, t, 0));
+            }
+            benchmarks.add(TransactionBenchmark.workers(k, WORKER_WINDOW, WORKER_MICROS, 16, WORKER_KEYS));
+        }
+
+        if (all || name.equals("tpcp-discovery")) {
+            for (int h : HISTORY_SIZES) {
+                for (DiscoveryBenchmark.Mode mode : DiscoveryBenchmark.Mode.values()) {
+                    benchmarks.add(new DiscoveryBenchmark(h, mode));
+                }
+            }
+        }
+
+        return benchmarks;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: zk_bench <suite> [-threads N] [-members K] [-warmup seconds] [-seconds seconds]");
+        System.out.println("Suites:");
+        System.out.println("  lock        - WriteLock uncontended, N-way contended (listener and tryLock) and N independent dirs");
+        System.out.println("  lock-local  - N threads on one dir: N sessions vs LocalLock over 1 and 2 shared sessions");
+        System.out.println("  lock-lease  - WriteLock without and with leases of 16 and 256 holds: 1 and N busy sessions, 2 pausing ones");
+        System.out.println("  lock-multi  - N sessions taking 2 and 8 of 64 locks at once: in sequence vs MultiLock");
+        System.out.println("  lock-tree   - N sessions locking a tenant (1%) or its orders: one WriteLock vs intention locks");
+        System.out.println("  lock-scan   - client cost of finding the WriteLock predecessor among N = 100 .. 10k nodes");
+        System.out.println("  lock-recovery - N sessions finding the lock node of a lost create among 1k and 10k: list vs probe");
+        System.out.println("  lock-retry  - 64 clients retrying through a 300 ms outage: linear, jittered, jittered with budget");
+        System.out.println("  lock-async  - 256 and 1024 users of 16 dirs on 4 sessions: a blocked thread each vs lockAsync");
+        System.out.println("  session     - 64 WriteLock users on their own dirs: a session each vs a pool of 1, 2 and 4 sessions");
+        System.out.println("  rwlock      - N workers on one dir at 90/10 and 99/1 read/write, WriteLock vs ReadWriteLock");
+        System.out.println("  tpcp-commit - 2PC where every member commits, N coordinators");
+        System.out.println("  tpcp-abort  - 2PC where one member always aborts, N coordinators");
+        System.out.println("  tpcp-crash  - 2PC where one member dies before voting, 1 coordinator");
+        System.out.println("  tpcp-churn  - 2PC where every member commits while another joins and leaves, N coordinators");
+        System.out.println("  tpcp        - the four tpcp suites above");
+        System.out.println("  tpcp-async  - 2PC where every member commits, 1 thread keeping 64 transactions in flight");
+        System.out.println("  tpcp-group  - 1 thread keeping 4 and 256 queries in flight, K = 4: alone vs group commit of up to 64, delays 0 .. 5 ms");
+        System.out.println("  tpcp-prepare - 1 thread keeping 64 transactions in flight, K = 4, 2 ms fsync per prepare: execute vs executeBatch");
+        System.out.println("  tpcp-workers - 1 thread keeping 256 transactions in flight, K = 4, 10 ms handler calls: 4, 16, 64 workers, 16 with 16 ordering keys");
+        System.out.println("  tpcp-discovery - client cost of finding new transactions among H = 1k .. 1M old ones");
+        System.out.println("  all         - every suite above");
+        System.out.println("tpcp suites sweep K = 2, 4, ..., 64 members unless -members is given.");
+    }
+}
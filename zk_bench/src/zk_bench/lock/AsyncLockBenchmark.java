@@ -0,0 +1,211 @@
+package zk_bench.lock;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.LockHandle;
+import org.apache.zookeeper.recipes.lock.WriteLock;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * W lock users spread over 16 dirs and 4 sessions, looping over
+ * lock/unlock: either a thread each parked in
+ * {@link WriteLock#lockInterruptibly()}, or chains of
+ * {@link WriteLock#lockAsync()} with no thread of their own. The recorded
+ * latency is from the lock request until it is owned. After the results
+ * comes the peak JVM thread count while running.
+ *
+ */
+public class AsyncLockBenchmark implements Benchmark {
+    private static final String ROOT = "/bench-async";
+    private static final int DIRS = 16;
+    private static final int SESSIONS = 4;
+
+    private final int waiters;
+    private final boolean async;
+
+    private List<ZooKeeper> clients;
+    private List<WriteLock> locks;
+    private ExecutorService threadPool;
+    private String summary;
+
+    /**
+     * @param waiters lock users (W)
+     * @param async true for lockAsync chains, false for a blocked thread each
+     */
+    public AsyncLockBenchmark(int waiters, boolean async) {
+        this.waiters = waiters;
+        this.async = async;
+    }
+
+    public String getName() {
+        return "writelock." + (async ? "async" : "blocking") + "-w" + waiters;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        clients = new ArrayList<ZooKeeper>(SESSIONS);
+        locks = new ArrayList<WriteLock>(waiters);
+
+        for (int i = 0; i < SESSIONS; i++) {
+            clients.add(server.connect(counters));
+        }
+
+        // WriteLock only creates its own dir, not the parents
+        clients.get(0).create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        for (int i = 0; i < waiters; i++) {
+            locks.add(new WriteLock(clients.get(i % SESSIONS), ROOT + "/lock-" + (i % DIRS), null));
+        }
+
+        if (!async) {
+            threadPool = Executors.newFixedThreadPool(waiters);
+        }
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        long ops = async ? runAsync(deadline, latency) : runBlocking(deadline, latency);
+
+        // warmup runs too, only the last run is reported
+        summary = String.format("  %s: %d threads at most", getName(), threads.getPeakThreadCount());
+
+        return ops;
+    }
+
+    private long runBlocking(final long deadline, final Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(waiters);
+
+        for (final WriteLock lock : locks) {
+            results.add(threadPool.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    long ops = 0;
+
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        lock.lockInterruptibly();
+                        latency.record(System.nanoTime() - start);
+                        ops++;
+                        lock.unlock();
+                    }
+
+                    return ops;
+                }
+            }));
+        }
+
+        long ops = 0;
+        for (Future<Long> f : results) {
+            ops += f.get();
+        }
+
+        return ops;
+    }
+
+    private long runAsync(long deadline, Histogram latency) throws Exception {
+        CountDownLatch done = new CountDownLatch(waiters);
+        AtomicLong ops = new AtomicLong();
+        List<AsyncWaiter> chains = new ArrayList<AsyncWaiter>(waiters);
+
+        for (WriteLock lock : locks) {
+            chains.add(new AsyncWaiter(lock, deadline, latency, ops, done));
+        }
+        for (AsyncWaiter w : chains) {
+            w.next();
+        }
+        done.await();
+
+        for (AsyncWaiter w : chains) {
+            if (w.failure != null) {
+                throw new IllegalStateException("Lock chain on " + w.lock.getDir() + " failed", w.failure);
+            }
+        }
+
+        return ops.get();
+    }
+
+    public void tearDown() throws Exception {
+        if (threadPool != null) {
+            threadPool.shutdownNow();
+        }
+
+        if (summary != null) {
+            System.out.println(summary);
+        }
+
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+    }
+
+    /**
+     * Takes the lock, releases it, takes it again until the deadline; each
+     * step runs from the completion of the one before
+     */
+    private static class AsyncWaiter implements BiConsumer<LockHandle, Throwable> {
+        private final WriteLock lock;
+        private final long deadline;
+        private final Histogram latency;
+        private final AtomicLong ops;
+        private final CountDownLatch done;
+        private long requested;
+
+        volatile Throwable failure;
+
+        AsyncWaiter(WriteLock lock, long deadline, Histogram latency, AtomicLong ops, CountDownLatch done) {
+            this.lock = lock;
+            this.deadline = deadline;
+            this.latency = latency;
+            this.ops = ops;
+            this.done = done;
+        }
+
+        void next() {
+            if (System.nanoTime() >= deadline) {
+                done.countDown();
+                return;
+            }
+            requested = System.nanoTime();
+            lock.lockAsync().whenComplete(this);
+        }
+
+        public void accept(LockHandle handle, Throwable failure) {
+            if (failure != null) {
+                this.failure = failure;
+                done.countDown();
+                return;
+            }
+
+            latency.record(System.nanoTime() - requested);
+            ops.incrementAndGet();
+
+            handle.unlock().whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(Void released, Throwable failure) {
+                    if (failure != null) {
+                        AsyncWaiter.this.failure = failure;
+                        done.countDown();
+                        return;
+                    }
+                    next();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package zk_bench.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.HierarchicalLockManager;
+import org.apache.zookeeper.recipes.lock.WriteLock;
+import org.apache.zookeeper.recipes.lock.HierarchicalLockManager.Mode;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * N sessions working on one tenant: 1% of the operations lock the whole
+ * tenant (/tenants/42), the rest one of its ORDERS orders
+ * (/tenants/42/orders/i), each holding the lock for HOLD_MILLIS:
+ * <ul>
+ * <li>coarse: every operation takes one {@link WriteLock} for the tenant</li>
+ * <li>intention: a {@link HierarchicalLockManager} per session, X on the
+ * tenant or on the order (IX on its ancestors)</li>
+ * </ul>
+ * The recorded latency is from the request until the worker holds its lock.
+ *
+ */
+public class HierarchicalLockBenchmark implements Benchmark {
+    static final String ROOT = WriteLockBenchmark.ROOT;
+    private static final long ACQUIRE_TIMEOUT = 30000L;
+    private static final long HOLD_MILLIS = 1L;
+    private static final int SUBTREE_PERCENT = 1;
+    private static final int ORDERS = 1000;
+    private static final String TENANT = "/tenants/42";
+
+    private final int workers;
+    private final boolean intention;
+
+    private List<ZooKeeper> clients;
+    private List<LockWorker> lockWorkers;
+    private ExecutorService threadPool;
+
+    /**
+     * @param workers sessions (N)
+     * @param intention true for the lock manager, false for one coarse WriteLock
+     */
+    public HierarchicalLockBenchmark(int workers, boolean intention) {
+        this.workers = workers;
+        this.intention = intention;
+    }
+
+    public String getName() {
+        return "hlock." + (intention ? "intention" : "coarse") + "-" + workers;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        clients = new ArrayList<ZooKeeper>(workers);
+        lockWorkers = new ArrayList<LockWorker>(workers);
+        threadPool = Executors.newFixedThreadPool(workers);
+
+        for (int i = 0; i < workers; i++) {
+            ZooKeeper zk = server.connect(counters);
+            clients.add(zk);
+            lockWorkers.add(new LockWorker(zk, i));
+        }
+
+        // the locks only create their own dirs, not the parents
+        clients.get(0).create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        clients.get(0).create(ROOT + "/tree", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(workers);
+
+        for (LockWorker w : lockWorkers) {
+            w.deadline = deadline;
+            w.latency = latency;
+            results.add(threadPool.submit(w));
+        }
+
+        long ops = 0;
+        for (Future<Long> f : results) {
+            ops += f.get();
+        }
+
+        return ops;
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+    }
+
+    /**
+     * Loops over lock/hold/unlock on the tenant or one of its orders
+     */
+    private class LockWorker implements Callable<Long> {
+        private final WriteLock coarse;
+        private final HierarchicalLockManager manager;
+        private final Random random;
+
+        volatile long deadline;
+        volatile Histogram latency;
+
+        LockWorker(ZooKeeper zk, int seed) {
+            this.coarse = new WriteLock(zk, ROOT + "/coarse", null);
+            this.manager = new HierarchicalLockManager(zk, ROOT + "/tree", null);
+            this.random = new Random(seed);
+        }
+
+        public Long call() throws Exception {
+            long ops = 0;
+
+            while (System.nanoTime() < deadline) {
+                String path = random.nextInt(100) < SUBTREE_PERCENT ?
+                    TENANT : TENANT + "/orders/" + random.nextInt(ORDERS);
+
+                long requested = System.nanoTime();
+
+                boolean locked = intention ?
+                    manager.tryLock(path, Mode.X, ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS) :
+                    coarse.tryLock(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (!locked) {
+                    throw new IllegalStateException("Timed out waiting for " + path);
+                }
+
+                latency.record(System.nanoTime() - requested);
+                ops++;
+
+                Thread.sleep(HOLD_MILLIS);
+
+                if (intention) {
+                    manager.unlock(path, Mode.X);
+                } else {
+                    coarse.unlock();
+                }
+            }
+
+            return ops;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package zk_bench.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.WriteLock;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * Acquire/release loop over {@link WriteLock} in lease mode, N sessions on
+ * one dir, each pausing thinkMicros between releasing and asking again.
+ * The recorded latency is from the request until the worker owns it.
+ * Fairness shows after the results as Jain's index over the operations each
+ * worker got (1 is perfectly even, 1/N is one worker getting everything)
+ * along with the lease hit ratio.
+ *
+ */
+public class LeaseBenchmark implements Benchmark {
+    static final String ROOT = WriteLockBenchmark.ROOT;
+    private static final long ACQUIRE_TIMEOUT = 30000L;
+    private static final long LEASE_MILLIS = 100L;
+
+    private final int workers;
+    private final int maxHolds;
+    private final long thinkMicros;
+
+    private List<ZooKeeper> clients;
+    private List<LockWorker> lockWorkers;
+    private ExecutorService threadPool;
+    private String summary;
+
+    /**
+     * @param workers sessions on the lock (N)
+     * @param maxHolds lease hold limit, 0 for no lease
+     * @param thinkMicros pause between unlock and the next lock
+     */
+    public LeaseBenchmark(int workers, int maxHolds, long thinkMicros) {
+        this.workers = workers;
+        this.maxHolds = maxHolds;
+        this.thinkMicros = thinkMicros;
+    }
+
+    public String getName() {
+        return "writelock.lease" + maxHolds + "-" + workers + (thinkMicros > 0 ? "-think" + thinkMicros : "");
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        clients = new ArrayList<ZooKeeper>(workers);
+        lockWorkers = new ArrayList<LockWorker>(workers);
+        threadPool = Executors.newFixedThreadPool(workers);
+
+        for (int i = 0; i < workers; i++) {
+            ZooKeeper zk = server.connect(counters);
+            WriteLock lock = new WriteLock(zk, ROOT + "/lease", null);
+            lock.setLease(LEASE_MILLIS, TimeUnit.MILLISECONDS, maxHolds);
+            clients.add(zk);
+            lockWorkers.add(new LockWorker(lock));
+        }
+
+        // WriteLock only creates its own dir, not the parents
+        clients.get(0).create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(workers);
+
+        for (LockWorker w : lockWorkers) {
+            w.deadline = deadline;
+            w.latency = latency;
+            w.hitsBefore = w.lock.getLeaseHits();
+            results.add(threadPool.submit(w));
+        }
+
+        long ops = 0;
+        double squares = 0;
+        for (Future<Long> f : results) {
+            long n = f.get();
+            ops += n;
+            squares += (double) n * n;
+        }
+
+        long hits = 0;
+        for (LockWorker w : lockWorkers) {
+            // release leased nodes, so the next run starts even
+            w.lock.unlock();
+            hits += w.lock.getLeaseHits() - w.hitsBefore;
+        }
+
+        // warmup runs too, only the last run is reported
+        summary = String.format("  %s: fairness %.3f, lease hits %.1f%%",
+                                getName(), squares == 0 ? 0 : (double) ops * ops / (workers * squares),
+                                ops == 0 ? 0 : 100.0 * hits / ops);
+
+        return ops;
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        if (summary != null) {
+            System.out.println(summary);
+        }
+
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+    }
+
+    /**
+     * Loops over lock/unlock on its own WriteLock
+     */
+    private class LockWorker implements Callable<Long> {
+        private final WriteLock lock;
+
+        volatile long deadline;
+        volatile Histogram latency;
+        long hitsBefore;
+
+        LockWorker(WriteLock lock) {
+            this.lock = lock;
+        }
+
+        public Long call() throws Exception {
+            long ops = 0;
+
+            while (System.nanoTime() < deadline) {
+                long requested = System.nanoTime();
+
+                if (!lock.tryLock(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("Timed out waiting for " + lock.getDir());
+                }
+
+                latency.record(System.nanoTime() - requested);
+                ops++;
+
+                lock.unlock();
+
+                if (thinkMicros > 0) {
+                    TimeUnit.MICROSECONDS.sleep(thinkMicros);
+                }
+            }
+
+            return ops;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package zk_bench.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.LocalLock;
+import org.apache.zookeeper.recipes.lock.LocalLockRegistry;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * Acquire/release loop over {@link LocalLock}: P sessions stand for P
+ * processes, each with a {@link LocalLockRegistry} shared by T threads, all
+ * on one dir. Compare with writelock.trylock-N, where each of the N = P * T
+ * threads has its own session and node.
+ * The recorded latency is the handoff latency, as in {@link WriteLockBenchmark}.
+ *
+ */
+public class LocalLockBenchmark implements Benchmark {
+    static final String ROOT = WriteLockBenchmark.ROOT;
+    private static final long ACQUIRE_TIMEOUT = 30000L;
+
+    private final int processes;
+    private final int threads;
+
+    private List<ZooKeeper> clients;
+    private List<LocalLockRegistry> registries;
+    private List<LockWorker> lockWorkers;
+    private ExecutorService threadPool;
+
+    /**
+     * @param processes sessions (P)
+     * @param threads threads sharing each session (T)
+     */
+    public LocalLockBenchmark(int processes, int threads) {
+        this.processes = processes;
+        this.threads = threads;
+    }
+
+    public String getName() {
+        return "locallock." + processes + "x" + threads;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        clients = new ArrayList<ZooKeeper>(processes);
+        registries = new ArrayList<LocalLockRegistry>(processes);
+        lockWorkers = new ArrayList<LockWorker>(processes * threads);
+        threadPool = Executors.newFixedThreadPool(processes * threads);
+
+        AtomicLong lastRelease = new AtomicLong();
+
+        for (int p = 0; p < processes; p++) {
+            ZooKeeper zk = server.connect(counters);
+            LocalLockRegistry registry = new LocalLockRegistry(zk, null);
+            clients.add(zk);
+            registries.add(registry);
+
+            for (int t = 0; t < threads; t++) {
+                lockWorkers.add(new LockWorker(registry.getLock(ROOT + "/local"), lastRelease));
+            }
+        }
+
+        // WriteLock only creates its own dir, not the parents
+        clients.get(0).create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(lockWorkers.size());
+
+        for (LockWorker w : lockWorkers) {
+            w.deadline = deadline;
+            w.latency = latency;
+            results.add(threadPool.submit(w));
+        }
+
+        long ops = 0;
+        for (Future<Long> f : results) {
+            ops += f.get();
+        }
+
+        return ops;
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        for (LocalLockRegistry registry : registries) {
+            registry.close();
+        }
+
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+    }
+
+    /**
+     * Loops over lock/unlock on a shared LocalLock
+     */
+    private static class LockWorker implements Callable<Long> {
+        private final LocalLock lock;
+        private final AtomicLong lastRelease;
+
+        volatile long deadline;
+        volatile Histogram latency;
+
+        LockWorker(LocalLock lock, AtomicLong lastRelease) {
+            this.lock = lock;
+            this.lastRelease = lastRelease;
+        }
+
+        public Long call() throws Exception {
+            long ops = 0;
+
+            while (System.nanoTime() < deadline) {
+                long requested = System.nanoTime();
+
+                if (!lock.tryLock(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("Timed out waiting for " + lock.getDir());
+                }
+
+                latency.record(System.nanoTime() - Math.max(requested, lastRelease.get()));
+                ops++;
+
+                lastRelease.set(System.nanoTime());
+                lock.unlock();
+            }
+
+            return ops;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package zk_bench.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.MultiLock;
+import org.apache.zookeeper.recipes.lock.WriteLock;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * N sessions each repeatedly taking K random locks out of DIRS (think
+ * accounts of a transfer), then releasing them:
+ * <ul>
+ * <li>seq: one {@link WriteLock} after the other in sorted order, then one
+ * unlock after the other, what callers had to do</li>
+ * <li>multi: a {@link MultiLock}</li>
+ * </ul>
+ * The recorded latency is the time to get the whole set.
+ *
+ */
+public class MultiLockBenchmark implements Benchmark {
+    static final String ROOT = WriteLockBenchmark.ROOT;
+    private static final long ACQUIRE_TIMEOUT = 30000L;
+    private static final int DIRS = 64;
+
+    private final int workers;
+    private final int locksPerOp;
+    private final boolean multi;
+
+    private List<ZooKeeper> clients;
+    private List<LockWorker> lockWorkers;
+    private ExecutorService threadPool;
+
+    /**
+     * @param workers sessions (N)
+     * @param locksPerOp locks taken together (K)
+     * @param multi true for MultiLock, false for sequential WriteLocks
+     */
+    public MultiLockBenchmark(int workers, int locksPerOp, boolean multi) {
+        this.workers = workers;
+        this.locksPerOp = locksPerOp;
+        this.multi = multi;
+    }
+
+    public String getName() {
+        return "multilock." + (multi ? "multi" : "seq") + "-k" + locksPerOp + "-" + workers;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        clients = new ArrayList<ZooKeeper>(workers);
+        lockWorkers = new ArrayList<LockWorker>(workers);
+        threadPool = Executors.newFixedThreadPool(workers);
+
+        for (int i = 0; i < workers; i++) {
+            ZooKeeper zk = server.connect(counters);
+            clients.add(zk);
+            lockWorkers.add(new LockWorker(zk, i));
+        }
+
+        // the locks only create their own dirs, not the parents
+        clients.get(0).create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(workers);
+
+        for (LockWorker w : lockWorkers) {
+            w.deadline = deadline;
+            w.latency = latency;
+            results.add(threadPool.submit(w));
+        }
+
+        long ops = 0;
+        for (Future<Long> f : results) {
+            ops += f.get();
+        }
+
+        return ops;
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+    }
+
+    /**
+     * Loops over taking and releasing a random set of locks
+     */
+    private class LockWorker implements Callable<Long> {
+        private final ZooKeeper zk;
+        private final Random random;
+
+        volatile long deadline;
+        volatile Histogram latency;
+
+        LockWorker(ZooKeeper zk, int seed) {
+            this.zk = zk;
+            this.random = new Random(seed);
+        }
+
+        public Long call() throws Exception {
+            long ops = 0;
+
+            while (System.nanoTime() < deadline) {
+                TreeSet<String> dirs = new TreeSet<String>();
+                while (dirs.size() < locksPerOp) {
+                    dirs.add(ROOT + "/account-" + random.nextInt(DIRS));
+                }
+
+                long requested = System.nanoTime();
+
+                if (multi) {
+                    MultiLock lock = new MultiLock(zk, dirs, null);
+                    if (!lock.tryLock(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        throw new IllegalStateException("Timed out waiting for " + dirs);
+                    }
+                    latency.record(System.nanoTime() - requested);
+                    lock.unlock();
+                } else {
+                    List<WriteLock> locks = new ArrayList<WriteLock>(locksPerOp);
+                    for (String dir : dirs) {
+                        WriteLock lock = new WriteLock(zk, dir, null);
+                        if (!lock.tryLock(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                            throw new IllegalStateException("Timed out waiting for " + dir);
+                        }
+                        locks.add(lock);
+                    }
+                    latency.record(System.nanoTime() - requested);
+                    for (WriteLock lock : locks) {
+                        lock.unlock();
+                    }
+                }
+
+                ops++;
+            }
+
+            return ops;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package zk_bench.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.LockListener;
+import org.apache.zookeeper.recipes.lock.ReadWriteLock;
+import org.apache.zookeeper.recipes.lock.WriteLock;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * N workers sharing one lock dir, each operation is a read with probability
+ * readPercent and a write otherwise, holding the lock for HOLD_MILLIS:
+ * <ul>
+ * <li>rwlock: reads take the {@link ReadWriteLock} read lock, writes its write lock</li>
+ * <li>writelock: every operation takes the exclusive {@link WriteLock}, as callers
+ * had to before</li>
+ * </ul>
+ * The recorded latency is from the lock request until the worker owns it.
+ *
+ */
+public class ReadWriteLockBenchmark implements Benchmark {
+    static final String ROOT = WriteLockBenchmark.ROOT;
+    private static final long ACQUIRE_TIMEOUT = 30000L;
+    private static final long HOLD_MILLIS = 1L;
+
+    private final String name;
+    private final int workers;
+    private final int readPercent;
+    private final boolean shared;
+
+    private List<ZooKeeper> clients;
+    private List<MixWorker> mixWorkers;
+    private ExecutorService threadPool;
+
+    public ReadWriteLockBenchmark(String name, int workers, int readPercent, boolean shared) {
+        this.name = name;
+        this.workers = workers;
+        this.readPercent = readPercent;
+        this.shared = shared;
+    }
+
+    public static ReadWriteLockBenchmark readWrite(int threads, int readPercent) {
+        return new ReadWriteLockBenchmark("rwlock.r" + readPercent + "-" + threads, threads, readPercent, true);
+    }
+
+    public static ReadWriteLockBenchmark exclusive(int threads, int readPercent) {
+        return new ReadWriteLockBenchmark("writelock.r" + readPercent + "-" + threads, threads, readPercent, false);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        clients = new ArrayList<ZooKeeper>(workers);
+        mixWorkers = new ArrayList<MixWorker>(workers);
+        threadPool = Executors.newFixedThreadPool(workers);
+
+        for (int i = 0; i < workers; i++) {
+            ZooKeeper zk = server.connect(counters);
+            clients.add(zk);
+            mixWorkers.add(new MixWorker(zk, ROOT + "/rwlock", i));
+        }
+
+        // the recipes only create their own dir, not the parents
+        clients.get(0).create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(workers);
+
+        for (MixWorker w : mixWorkers) {
+            w.deadline = deadline;
+            w.latency = latency;
+            results.add(threadPool.submit(w));
+        }
+
+        long ops = 0;
+        for (Future<Long> f : results) {
+            ops += f.get();
+        }
+
+        return ops;
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+    }
+
+    /**
+     * Loops over lock/hold/unlock, picking the lock by the read/write mix
+     */
+    private class MixWorker implements Callable<Long>, LockListener {
+        private final WriteLock readLock;
+        private final WriteLock writeLock;
+        private final Random random;
+        private final Semaphore acquired = new Semaphore(0);
+
+        volatile long deadline;
+        volatile Histogram latency;
+
+        MixWorker(ZooKeeper zk, String dir, int seed) {
+            if (shared) {
+                ReadWriteLock rw = new ReadWriteLock(zk, dir, null);
+                this.readLock = rw.readLock();
+                this.writeLock = rw.writeLock();
+                this.readLock.setLockListener(this);
+                this.writeLock.setLockListener(this);
+            }
+            else {
+                this.writeLock = new WriteLock(zk, dir, null, this);
+                this.readLock = this.writeLock;
+            }
+            this.random = new Random(seed);
+        }
+
+        public Long call() throws Exception {
+            long ops = 0;
+
+            while (System.nanoTime() < deadline) {
+                WriteLock lock = random.nextInt(100) < readPercent ? readLock : writeLock;
+
+                acquired.drainPermits();
+
+                long requested = System.nanoTime();
+
+                // the listener is told both when we get the lock right away and later on
+                lock.lock();
+                if (!acquired.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("Timed out waiting for " + lock.getDir());
+                }
+
+                latency.record(System.nanoTime() - requested);
+                ops++;
+
+                Thread.sleep(HOLD_MILLIS);
+                lock.unlock();
+            }
+
+            return ops;
+        }
+
+        public void lockAcquired() {
+            acquired.release();
+        }
+
+        public void lockReleased() {
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package zk_bench.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.LockListener;
+import org.apache.zookeeper.recipes.lock.WriteLock;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * Acquire/release loop over {@link WriteLock}. Every worker has its own
+ * session (the recipe tells nodes apart by session id) and worker i uses
+ * lock dir i % dirs, so:
+ * <ul>
+ * <li>1 worker, 1 dir: uncontended acquire/release</li>
+ * <li>N workers, 1 dir: N-way contention on one lock</li>
+ * <li>N workers, N dirs: many independent locks</li>
+ * </ul>
+ * Workers wait on a {@link LockListener}, or block in {@link WriteLock#tryLock}
+ * for the trylock variant.
+ * The recorded latency is the handoff latency: from the moment the lock
+ * became available to a worker (its request, or the previous owner's
+ * release, whichever came last) until the worker owns it.
+ *
+ */
+public class WriteLockBenchmark implements Benchmark {
+    static final String ROOT = "/bench-lock";
+    private static final long ACQUIRE_TIMEOUT = 30000L;
+
+    private final String name;
+    private final int workers;
+    private final int dirs;
+    private final boolean blocking;
+
+    private List<ZooKeeper> clients;
+    private List<LockWorker> lockWorkers;
+    private ExecutorService threadPool;
+
+    public WriteLockBenchmark(String name, int workers, int dirs) {
+        this(name, workers, dirs, false);
+    }
+
+    /**
+     * @param blocking true to wait in {@link WriteLock#tryLock} instead of
+     * on a listener
+     */
+    public WriteLockBenchmark(String name, int workers, int dirs, boolean blocking) {
+        this.name = name;
+        this.workers = workers;
+        this.dirs = dirs;
+        this.blocking = blocking;
+    }
+
+    public static WriteLockBenchmark uncontended() {
+        return new WriteLockBenchmark("writelock.uncontended", 1, 1);
+    }
+
+    public static WriteLockBenchmark contended(int threads) {
+        return new WriteLockBenchmark("writelock.contended-" + threads, threads, 1);
+    }
+
+    public static WriteLockBenchmark contendedTryLock(int threads) {
+        return new WriteLockBenchmark("writelock.trylock-" + threads, threads, 1, true);
+    }
+
+    public static WriteLockBenchmark independent(int threads) {
+        return new WriteLockBenchmark("writelock.independent-" + threads, threads, threads);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        clients = new ArrayList<ZooKeeper>(workers);
+        lockWorkers = new ArrayList<LockWorker>(workers);
+        threadPool = Executors.newFixedThreadPool(workers);
+
+        AtomicLong[] lastRelease = new AtomicLong[dirs];
+        for (int i = 0; i < dirs; i++) {
+            lastRelease[i] = new AtomicLong();
+        }
+
+        for (int i = 0; i < workers; i++) {
+            ZooKeeper zk = server.connect(counters);
+            clients.add(zk);
+            lockWorkers.add(new LockWorker(zk, ROOT + "/lock-" + (i % dirs), lastRelease[i % dirs], blocking));
+        }
+
+        // WriteLock only creates its own dir, not the parents
+        clients.get(0).create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(workers);
+
+        for (LockWorker w : lockWorkers) {
+            w.deadline = deadline;
+            w.latency = latency;
+            results.add(threadPool.submit(w));
+        }
+
+        long ops = 0;
+        for (Future<Long> f : results) {
+            ops += f.get();
+        }
+
+        return ops;
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+    }
+
+    /**
+     * Loops over lock/unlock on a single WriteLock
+     */
+    private static class LockWorker implements Callable<Long>, LockListener {
+        private final WriteLock lock;
+        private final AtomicLong lastRelease;
+        private final boolean blocking;
+        private final Semaphore acquired = new Semaphore(0);
+
+        volatile long deadline;
+        volatile Histogram latency;
+
+        LockWorker(ZooKeeper zk, String dir, AtomicLong lastRelease, boolean blocking) {
+            this.lock = new WriteLock(zk, dir, null, this);
+            this.lastRelease = lastRelease;
+            this.blocking = blocking;
+        }
+
+        public Long call() throws Exception {
+            long ops = 0;
+
+            while (System.nanoTime() < deadline) {
+                acquired.drainPermits();
+
+                long requested = System.nanoTime();
+
+                if (blocking) {
+                    if (!lock.tryLock(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        throw new IllegalStateException("Timed out waiting for " + lock.getDir());
+                    }
+                } else {
+                    // the listener is told both when we get the lock right away and later on
+                    lock.lock();
+                }
+                if (!blocking && !acquired.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("Timed out waiting for " + lock.getDir());
+                }
+
+                latency.record(System.nanoTime() - Math.max(requested, lastRelease.get()));
+                ops++;
+
+                lastRelease.set(System.nanoTime());
+                lock.unlock();
+            }
+
+            return ops;
+        }
+
+        public void lockAcquired() {
+            acquired.release();
+        }
+
+        public void lockReleased() {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package zk_bench.server;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.zookeeper.AsyncCallback.ACLCallback;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * ZooKeeper client which accounts every request it sends, so benchmarks can
+ * report round-trips per operation. The read methods taking a boolean watch
+ * flag delegate to their Watcher counterparts, so only those are counted.
+ *
+ */
+public class CountingZooKeeper extends ZooKeeper {
+    private final OperationCounters counters;
+
+    public CountingZooKeeper(String connectString, int sessionTimeout, Watcher watcher,
+                             OperationCounters counters) throws IOException {
+        super(connectString, sessionTimeout, watcher);
+        this.counters = counters;
+    }
+
+    /**
+     * Get the counters this client accounts into.
+     */
+    public OperationCounters getCounters() {
+        return counters;
+    }
+
+    @Override
+    public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode)
+        throws KeeperException, InterruptedException {
+        counters.write();
+        return super.create(path, data, acl, createMode);
+    }
+
+    @Override
+    public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode,
+                       StringCallback cb, Object ctx) {
+        counters.write();
+        super.create(path, data, acl, createMode, cb, ctx);
+    }
+
+    @Override
+    public void delete(String path, int version) throws InterruptedException, KeeperException {
+        counters.write();
+        super.delete(path, version);
+    }
+
+    @Override
+    public void delete(String path, int version, VoidCallback cb, Object ctx) {
+        counters.write();
+        super.delete(path, version, cb, ctx);
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        counters.write();
+        return super.setData(path, data, version);
+    }
+
+    @Override
+    public void setData(String path, byte[] data, int version, StatCallback cb, Object ctx) {
+        counters.write();
+        super.setData(path, data, version, cb, ctx);
+    }
+
+    @Override
+    public Stat setACL(String path, List<ACL> acl, int version) throws KeeperException, InterruptedException {
+        counters.write();
+        return super.setACL(path, acl, version);
+    }
+
+    @Override
+    public void setACL(String path, List<ACL> acl, int version, StatCallback cb, Object ctx) {
+        counters.write();
+        super.setACL(path, acl, version, cb, ctx);
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        counters.read(watcher != null);
+        return super.exists(path, watcher);
+    }
+
+    @Override
+    public void exists(String path, Watcher watcher, StatCallback cb, Object ctx) {
+        counters.read(watcher != null);
+        super.exists(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        counters.read(watcher != null);
+        return super.getData(path, watcher, stat);
+    }
+
+    @Override
+    public void getData(String path, Watcher watcher, DataCallback cb, Object ctx) {
+        counters.read(watcher != null);
+        super.getData(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public List<ACL> getACL(String path, Stat stat) throws KeeperException, InterruptedException {
+        counters.read(false);
+        return super.getACL(path, stat);
+    }
+
+    @Override
+    public void getACL(String path, Stat stat, ACLCallback cb, Object ctx) {
+        counters.read(false);
+        super.getACL(path, stat, cb, ctx);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        counters.read(watcher != null);
+        return super.getChildren(path, watcher);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, ChildrenCallback cb, Object ctx) {
+        counters.read(watcher != null);
+        super.getChildren(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher, Stat stat)
+        throws KeeperException, InterruptedException {
+        counters.read(watcher != null);
+        return super.getChildren(path, watcher, stat);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, Children2Callback cb, Object ctx) {
+        counters.read(watcher != null);
+        super.getChildren(path, watcher, cb, ctx);
+    }
+}
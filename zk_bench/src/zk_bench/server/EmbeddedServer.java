@@ -0,0 +1,109 @@
+package zk_bench.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * A standalone ZooKeeper server running inside the benchmark's JVM.
+ * Snapshots and transaction logs go to a temporary directory which is
+ * removed on {@link #shutdown()}.
+ *
+ */
+public class EmbeddedServer {
+    private static final int TICK_TIME = 2000;
+    private static final int SESSION_TIMEOUT = 10000;
+    private static final long CONNECT_TIMEOUT = 10000L;
+
+    private File dataDir;
+    private ZooKeeperServer server;
+    private NIOServerCnxn.Factory factory;
+
+    /**
+     * Starts the server on a free loopback port.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void start() throws IOException, InterruptedException {
+        dataDir = File.createTempFile("zk_bench", "");
+        dataDir.delete();
+        dataDir.mkdirs();
+
+        server = new ZooKeeperServer(dataDir, dataDir, TICK_TIME);
+        // no limit on connections per host, every benchmark client comes from loopback
+        factory = new NIOServerCnxn.Factory(new InetSocketAddress("127.0.0.1", 0), 0);
+        factory.startup(server);
+    }
+
+    /**
+     * Stops the server and removes its data directory.
+     */
+    public void shutdown() {
+        if (factory != null) {
+            factory.shutdown();
+            factory = null;
+        }
+        if (server != null) {
+            server.shutdown();
+            server = null;
+        }
+        if (dataDir != null) {
+            delete(dataDir);
+            dataDir = null;
+        }
+    }
+
+    /**
+     * Get the connection string clients should use.
+     * @return host:port of this server
+     */
+    public String getConnectString() {
+        return "127.0.0.1:" + factory.getLocalPort();
+    }
+
+    /**
+     * Opens a new session against this server, waiting until it's connected.
+     * @param counters where the new client accounts its requests
+     * @return a connected client
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public CountingZooKeeper connect(OperationCounters counters) throws IOException, InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+
+        CountingZooKeeper zk = new CountingZooKeeper(getConnectString(), SESSION_TIMEOUT, new Watcher() {
+            public void process(WatchedEvent event) {
+                if (event.getState() == KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }
+        }, counters);
+
+        if (!connected.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            zk.close();
+            throw new IOException("Could not connect to " + getConnectString());
+        }
+
+        return zk;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+
+        f.delete();
+    }
+}
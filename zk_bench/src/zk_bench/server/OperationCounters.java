@@ -0,0 +1,61 @@
+package zk_bench.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counters shared by one or more {@link CountingZooKeeper} clients.
+ *
+ */
+public class OperationCounters {
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong watches = new AtomicLong();
+
+    void read(boolean watch) {
+        reads.incrementAndGet();
+        if (watch) {
+            watches.incrementAndGet();
+        }
+    }
+
+    void write() {
+        writes.incrementAndGet();
+    }
+
+    /**
+     * Number of exists/getData/getChildren/getACL requests.
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * Number of create/delete/setData/setACL requests.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Number of reads which left a watch behind.
+     */
+    public long getWatches() {
+        return watches.get();
+    }
+
+    /**
+     * Every request is one round-trip to the server.
+     */
+    public long getRoundTrips() {
+        return getReads() + getWrites();
+    }
+
+    /**
+     * Zeroes all counters.
+     */
+    public void reset() {
+        reads.set(0);
+        writes.set(0);
+        watches.set(0);
+    }
+}
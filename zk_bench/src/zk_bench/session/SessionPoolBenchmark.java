@@ -0,0 +1,174 @@
+package zk_bench.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.WriteLock;
+import org.apache.zookeeper.recipes.session.SessionHandle;
+import org.apache.zookeeper.recipes.session.SessionPool;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * C components, each a {@link WriteLock} on its own dir looping over
+ * lock/unlock, either on a session each (as services do now) or on handles
+ * of a {@link SessionPool} of P sessions. After the results come the JVM
+ * thread count while running and, when pooled, the per-handle request
+ * counts, since pooled requests don't go through the benchmark counters.
+ *
+ */
+public class SessionPoolBenchmark implements Benchmark {
+    private static final String ROOT = "/bench-pool";
+    private static final int SESSION_TIMEOUT = 10000;
+    private static final long ACQUIRE_TIMEOUT = 30000L;
+
+    private final int components;
+    private final int sessions;
+
+    private List<ZooKeeper> clients;
+    private SessionPool pool;
+    private List<LockWorker> lockWorkers;
+    private ExecutorService threadPool;
+    private String summary;
+
+    /**
+     * @param components lock users (C)
+     * @param sessions sessions of the pool (P), 0 for a session per component
+     */
+    public SessionPoolBenchmark(int components, int sessions) {
+        this.components = components;
+        this.sessions = sessions;
+    }
+
+    public String getName() {
+        return "session." + (sessions == 0 ? "dedicated" : "pooled" + sessions) + "-c" + components;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        clients = new ArrayList<ZooKeeper>();
+        lockWorkers = new ArrayList<LockWorker>(components);
+        threadPool = Executors.newFixedThreadPool(components);
+
+        if (sessions > 0) {
+            pool = new SessionPool(server.getConnectString(), SESSION_TIMEOUT, sessions);
+            if (!pool.awaitConnected(SESSION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Could not connect the session pool");
+            }
+        }
+
+        for (int i = 0; i < components; i++) {
+            String dir = ROOT + "/component-" + i;
+            ZooKeeper zk;
+            if (pool != null) {
+                zk = pool.open(dir).getZooKeeper();
+            } else {
+                zk = server.connect(counters);
+                clients.add(zk);
+            }
+            lockWorkers.add(new LockWorker(new WriteLock(zk, dir, null)));
+        }
+
+        // WriteLock only creates its own dir, not the parents
+        ZooKeeper zk = server.connect(new OperationCounters());
+        zk.create(ROOT, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.close();
+    }
+
+    public long run(long deadline, Histogram latency) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>(components);
+
+        if (pool != null) {
+            for (SessionHandle handle : pool.getHandles()) {
+                handle.reset();
+            }
+        }
+
+        for (LockWorker w : lockWorkers) {
+            w.deadline = deadline;
+            w.latency = latency;
+            results.add(threadPool.submit(w));
+        }
+
+        int threads = Thread.activeCount();
+
+        long ops = 0;
+        for (Future<Long> f : results) {
+            ops += f.get();
+        }
+
+        // warmup runs too, only the last run is reported
+        summary = String.format("  %s: %d threads", getName(), threads);
+        if (pool != null && ops > 0) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            long total = 0;
+            for (SessionHandle handle : pool.getHandles()) {
+                min = Math.min(min, handle.getRequests());
+                max = Math.max(max, handle.getRequests());
+                total += handle.getRequests();
+            }
+            summary += String.format(", %.2f requests/op, per handle %d .. %d, %d unrouted",
+                                     (double) total / ops, min, max, pool.getUnrouted());
+        }
+
+        return ops;
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        if (summary != null) {
+            System.out.println(summary);
+        }
+
+        if (pool != null) {
+            pool.close();
+        }
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+    }
+
+    /**
+     * Loops over lock/unlock on its own WriteLock
+     */
+    private static class LockWorker implements Callable<Long> {
+        private final WriteLock lock;
+
+        volatile long deadline;
+        volatile Histogram latency;
+
+        LockWorker(WriteLock lock) {
+            this.lock = lock;
+        }
+
+        public Long call() throws Exception {
+            long ops = 0;
+
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+
+                if (!lock.tryLock(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("Timed out waiting for " + lock.getDir());
+                }
+                lock.unlock();
+
+                latency.record(System.nanoTime() - start);
+                ops++;
+            }
+
+            return ops;
+        }
+    }
+}
@@ -0,0 +1,605 @@
+package zk_bench.tpcp;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.tpcp.GroupMember;
+import org.apache.zookeeper.recipes.tpcp.IBatchTransactionHandler;
+import org.apache.zookeeper.recipes.tpcp.ITransaction;
+import org.apache.zookeeper.recipes.tpcp.IOrderingKey;
+import org.apache.zookeeper.recipes.tpcp.ITransactionHandler;
+import org.apache.zookeeper.recipes.tpcp.TransactionGroup;
+
+import zk_bench.Benchmark;
+import zk_bench.server.EmbeddedServer;
+import zk_bench.server.OperationCounters;
+import zk_bench.util.Histogram;
+
+/**
+ * Two-phase commit over {@link TransactionGroup} with K in-process members,
+ * each on its own session (members are named after their session id).
+ * Coordinators issue transactions back to back for every member of the
+ * group; the recorded latency goes from BeginTransaction until the result
+ * is known.
+ *
+ */
+public class TransactionBenchmark implements Benchmark {
+    static final String GROUP = "/bench-tpcp";
+    private static final int WORKER_QUEUE = 1024;
+    private static final long MEMBERSHIP_TIMEOUT = 30000L;
+
+    /**
+     * How participants vote
+     */
+    public enum Scenario {
+        /** every participant commits */
+        COMMIT,
+        /** the last member always aborts */
+        ABORT,
+        /** the last member's session dies before it votes, a fresh member replaces it */
+        CRASH,
+        /** every participant commits while one more member joins and leaves in a loop */
+        CHURN
+    }
+
+    private final int members;
+    private final int coordinators;
+    private final Scenario scenario;
+    private final int window;
+    private final int maxBatch;
+    private final long maxDelayMicros;
+    private final long fsyncMicros;
+    private final boolean batchPrepare;
+    private final long workMicros;
+    private final int workerThreads;
+    private final int keys;
+
+    private EmbeddedServer server;
+    private OperationCounters counters;
+    private List<ZooKeeper> clients;
+    private List<TransactionGroup> groups;
+    private List<ITransactionHandler> handlers;
+    private ExecutorService threadPool;
+    private List<GroupMember> participants;
+    private ZooKeeper churnClient;
+    private volatile boolean churning;
+    private String summary;
+    private int threadsBefore;
+
+    /**
+     * @param members group size (K)
+     * @param coordinators how many members issue transactions concurrently
+     * @param scenario how participants vote
+     */
+    public TransactionBenchmark(int members, int coordinators, Scenario scenario) {
+        this.members = members;
+        this.scenario = scenario;
+        this.window = 1;
+        this.maxBatch = 0;
+        this.maxDelayMicros = 0;
+        this.fsyncMicros = 0;
+        this.batchPrepare = false;
+        this.workMicros = 0;
+        this.workerThreads = 0;
+        this.keys = 0;
+        // the crash victim is replaced between transactions, so keep a single coordinator there
+        this.coordinators = scenario == Scenario.CRASH ? 1 : Math.max(1, Math.min(coordinators, members - 1));
+    }
+
+    /**
+     * A single coordinator thread keeping up to window transactions in flight
+     * through {@link ITransaction#resultAsync()}, every member commits.
+     * @param members group size (K)
+     * @param window how many transactions may be in flight at once
+     * @return the benchmark
+     */
+    public static TransactionBenchmark pipelined(int members, int window) {
+        return new TransactionBenchmark(members, window, 0, 0, 0, false, 0, 0, 0);
+    }
+
+    /**
+     * As {@link #pipelined}, the coordinator's queries going through group commit.
+     * @param members group size (K)
+     * @param window how many queries may be in flight at once
+     * @param maxBatch most queries per batch
+     * @param maxDelayMicros longest wait for a batch to leave, 0 for until the previous one is decided
+     * @return the benchmark
+     */
+    public static TransactionBenchmark groupCommit(int members, int window, int maxBatch, long maxDelayMicros) {
+        return new TransactionBenchmark(members, window, maxBatch, maxDelayMicros, 0, false, 0, 0, 0);
+    }
+
+    /**
+     * As {@link #pipelined}, participants logging each prepare with a simulated
+     * fsync, one at a time per member.
+     * @param members group size (K)
+     * @param window how many transactions may be in flight at once
+     * @param fsyncMicros time one fsync takes
+     * @param batchPrepare true for an {@link IBatchTransactionHandler}, one fsync per call
+     * @return the benchmark
+     */
+    public static TransactionBenchmark logged(int members, int window, long fsyncMicros, boolean batchPrepare) {
+        return new TransactionBenchmark(members, window, 0, 0, fsyncMicros, batchPrepare, 0, 0, 0);
+    }
+
+    /**
+     * As {@link #pipelined}, participants spending workMicros in each handler call,
+     * as many calls at once as they have worker threads. With keys, queries go round
+     * over that many ordering keys and the handlers check that each key's transactions
+     * are executed and decided in transaction ID order.
+     * @param members group size (K)
+     * @param window how many transactions may be in flight at once
+     * @param workMicros time a handler call takes
+     * @param workerThreads worker threads per member
+     * @param keys ordering keys, 0 for unordered
+     * @return the benchmark
+     */
+    public static TransactionBenchmark workers(int members, int window, long workMicros, int workerThreads, int keys) {
+        return new TransactionBenchmark(members, window, 0, 0, 0, false, workMicros, workerThreads, keys);
+    }
+
+    private TransactionBenchmark(int members, int window, int maxBatch, long maxDelayMicros,
+                                 long fsyncMicros, boolean batchPrepare,
+                                 long workMicros, int workerThreads, int keys) {
+        this.members = members;
+        this.scenario = Scenario.COMMIT;
+        this.coordinators = 1;
+        this.window = window;
+        this.maxBatch = maxBatch;
+        this.maxDelayMicros = maxDelayMicros;
+        this.fsyncMicros = fsyncMicros;
+        this.batchPrepare = batchPrepare;
+        this.workMicros = workMicros;
+        this.workerThreads = workerThreads;
+        this.keys = keys;
+    }
+
+    public String getName() {
+        String name = "tpcp." + scenario.name().toLowerCase() + "-k" + members;
+
+        if (maxBatch > 1) {
+            return name + "-async" + window + "-gc" + maxBatch + (maxDelayMicros > 0 ? "-" + maxDelayMicros + "us" : "");
+        }
+        if (workMicros > 0) {
+            return name + "-async" + window + "-t" + workerThreads + (keys > 0 ? "-keys" + keys : "");
+        }
+        if (fsyncMicros > 0) {
+            return name + "-async" + window + "-fsync" + fsyncMicros + "us" + (batchPrepare ? "-batch" : "");
+        }
+
+        return window > 1 ? name + "-async" + window : name + "-c" + coordinators;
+    }
+
+    public void setUp(EmbeddedServer server, OperationCounters counters) throws Exception {
+        this.server = server;
+        this.counters = counters;
+        this.clients = new ArrayList<ZooKeeper>(members);
+        this.groups = new ArrayList<TransactionGroup>(members);
+        this.handlers = new ArrayList<ITransactionHandler>(members);
+        // idle workers of the benchmarks before linger for a while, count only ours
+        this.threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        this.threadPool = Executors.newFixedThreadPool(coordinators);
+
+        for (int i = 0; i < members; i++) {
+            boolean victim = i == members - 1;
+
+            ZooKeeper zk = server.connect(counters);
+            clients.add(zk);
+            TransactionGroup g = TransactionGroup.joinGroup(GROUP, zk, newHandler(victim, zk));
+            groups.add(g);
+
+            if (workerThreads > 0) {
+                g.setExecution(workerThreads, WORKER_QUEUE);
+            }
+            if (keys > 0) {
+                g.setOrderingKey(new IOrderingKey<Serializable>() {
+                    public Object getOrderingKey(Serializable query) {
+                        return query;
+                    }
+                });
+            }
+        }
+
+        for (int i = 0; i < coordinators; i++) {
+            awaitMembership(groups.get(i));
+        }
+
+        if (maxBatch > 1) {
+            groups.get(0).setGroupCommit(maxBatch, maxDelayMicros, TimeUnit.MICROSECONDS);
+        }
+
+        if (scenario == Scenario.CHURN) {
+            // the churning member never takes part, so leaving aborts nothing
+            participants = groups.get(0).getMembers();
+            churnClient = server.connect(new OperationCounters());
+        }
+    }
+
+    public long run(final long deadline, final Histogram latency) throws Exception {
+        if (window > 1) {
+            return runPipelined(deadline, latency);
+        }
+
+        List<Future<Long>> results = new ArrayList<Future<Long>>(coordinators);
+        Thread churner = scenario == Scenario.CHURN ? startChurn() : null;
+
+        for (int i = 0; i < coordinators; i++) {
+            final TransactionGroup group = groups.get(i);
+
+            results.add(threadPool.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    long ops = 0;
+
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+
+                        ITransaction t = group.BeginTransaction("query", participants);
+                        boolean committed = t.getResult();
+
+                        latency.record(System.nanoTime() - start);
+                        ops++;
+
+                        if (committed != (scenario == Scenario.COMMIT || scenario == Scenario.CHURN)) {
+                            throw new IllegalStateException("Unexpected result on " + getName() + ": " + committed);
+                        }
+
+                        if (scenario == Scenario.CRASH) {
+                            replaceVictim();
+                        }
+                    }
+
+                    return ops;
+                }
+            }));
+        }
+
+        long ops = 0;
+        try {
+            for (Future<Long> f : results) {
+                ops += f.get();
+            }
+        }
+        finally {
+            if (churner != null) {
+                churning = false;
+                churner.join();
+            }
+        }
+
+        // warmup runs too, only the last run is reported
+        long visits = 0;
+        long nanos = 0;
+        long max = 0;
+        for (TransactionGroup g : groups) {
+            visits += g.getStatistics().getEventThreadVisits();
+            nanos += g.getStatistics().getEventThreadNanos();
+            max = Math.max(max, g.getStatistics().getMaxEventThreadNanos());
+        }
+        summary = String.format("  %s: event thread held %.1f us on average, %.1f us at most, over %d visits",
+                                getName(), visits == 0 ? 0 : nanos / 1000.0 / visits, max / 1000.0, visits);
+
+        return ops;
+    }
+
+    /**
+     * Joins and leaves the group on its own session until told to stop,
+     * every member sees two membership changes per loop
+     */
+    private Thread startChurn() {
+        churning = true;
+
+        Thread churner = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (churning) {
+                        TransactionGroup.joinGroup(GROUP, churnClient, new VotingHandler(true)).leaveGroup();
+                    }
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "churn");
+
+        churner.start();
+        return churner;
+    }
+
+    /**
+     * Issues transactions from this thread without waiting on any of them,
+     * as long as fewer than window are in flight.
+     */
+    private long runPipelined(long deadline, final Histogram latency) throws Exception {
+        final Semaphore inFlight = new Semaphore(window);
+        final AtomicLong ops = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        TransactionGroup group = groups.get(0);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long n = 0;
+
+        threads.resetPeakThreadCount();
+
+        while (System.nanoTime() < deadline && failure.get() == null) {
+            inFlight.acquire();
+
+            final long start = System.nanoTime();
+
+            String query = keys > 0 ? "q" + (n++ % keys) : "query";
+
+            group.BeginTransaction(query, null).resultAsync().whenComplete(new BiConsumer<Boolean, Throwable>() {
+                public void accept(Boolean committed, Throwable error) {
+                    latency.record(System.nanoTime() - start);
+                    ops.incrementAndGet();
+
+                    if (error != null || !committed) {
+                        failure.compareAndSet(null, error != null ? error
+                                              : new IllegalStateException("Unexpected result on " + getName() + ": " + committed));
+                    }
+
+                    inFlight.release();
+                }
+            });
+        }
+
+        // wait for the stragglers
+        inFlight.acquire(window);
+        inFlight.release(window);
+
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get());
+        }
+        for (ITransactionHandler h : handlers) {
+            if (h instanceof WorkingHandler && ((WorkingHandler) h).outOfOrder != null) {
+                throw new IllegalStateException(((WorkingHandler) h).outOfOrder);
+            }
+        }
+
+        // warmup runs too, only the last run is reported
+        if (maxBatch > 1) {
+            summary = String.format("  %s: %.1f queries per batch over %d batches",
+                                    getName(), group.getStatistics().getMeanBatchSize(),
+                                    group.getStatistics().getBatches());
+        }
+        else if (workMicros > 0) {
+            summary = String.format("  %s: %d threads started at most (sessions included)",
+                                    getName(), threads.getPeakThreadCount() - threadsBefore);
+        }
+        else if (batchPrepare) {
+            summary = String.format("  %s: %.1f transactions per handler call on the last member",
+                                    getName(), groups.get(members - 1).getStatistics().getMeanPrepareBatchSize());
+        }
+
+        return ops.get();
+    }
+
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+
+        if (summary != null) {
+            System.out.println(summary);
+        }
+
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+        if (churnClient != null) {
+            churnClient.close();
+        }
+    }
+
+    private ITransactionHandler newHandler(boolean victim, ZooKeeper zk) {
+        if (workMicros > 0) {
+            WorkingHandler h = new WorkingHandler(workMicros);
+            handlers.add(h);
+            return h;
+        }
+        if (fsyncMicros > 0) {
+            return batchPrepare ? new BatchLoggingHandler(fsyncMicros) : new LoggingHandler(fsyncMicros);
+        }
+        if (!victim || scenario == Scenario.COMMIT || scenario == Scenario.CHURN) {
+            return new VotingHandler(true);
+        }
+        else if (scenario == Scenario.ABORT) {
+            return new VotingHandler(false);
+        }
+        else {
+            return new CrashingHandler(zk);
+        }
+    }
+
+    /**
+     * Joins a fresh member in place of the one which crashed
+     * and waits until the coordinator sees the change.
+     */
+    private void replaceVictim() throws Exception {
+        int last = members - 1;
+
+        ZooKeeper zk = server.connect(counters);
+        clients.set(last, zk);
+        groups.set(last, TransactionGroup.joinGroup(GROUP, zk, newHandler(true, zk)));
+
+        awaitMembership(groups.get(0));
+    }
+
+    /**
+     * Waits until the group sees exactly the live members, so transactions
+     * never wait on a member which is gone or miss one which just joined.
+     */
+    private void awaitMembership(TransactionGroup group) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MEMBERSHIP_TIMEOUT;
+
+        while (!sameMembers(group.getMembers())) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Group membership did not settle");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private boolean sameMembers(List<GroupMember> seen) {
+        if (seen.size() != clients.size()) {
+            return false;
+        }
+
+        List<String> names = new ArrayList<String>(seen.size());
+        for (GroupMember gm : seen) {
+            names.add(gm.getName());
+        }
+
+        for (ZooKeeper zk : clients) {
+            if (!names.contains(Long.toString(zk.getSessionId()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Votes the same way on every transaction
+     */
+    private static class VotingHandler implements ITransactionHandler {
+        private final boolean vote;
+
+        VotingHandler(boolean vote) {
+            this.vote = vote;
+        }
+
+        public boolean execute(long transactionID, Serializable query) {
+            return vote;
+        }
+
+        public void result(long transactionID, boolean result) {
+        }
+    }
+
+    /**
+     * Commits everything, logging each prepare with an fsync; a member has one
+     * log, so fsyncs wait for each other
+     */
+    private static class LoggingHandler implements ITransactionHandler {
+        private final long fsyncMicros;
+
+        LoggingHandler(long fsyncMicros) {
+            this.fsyncMicros = fsyncMicros;
+        }
+
+        public boolean execute(long transactionID, Serializable query) {
+            fsync();
+            return true;
+        }
+
+        public void result(long transactionID, boolean result) {
+        }
+
+        synchronized void fsync() {
+            long end = System.nanoTime() + fsyncMicros * 1000L;
+
+            while (System.nanoTime() < end) {
+                LockSupport.parkNanos(end - System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Commits everything after workMicros, calls running in parallel; remembers
+     * the last transaction executed and decided of each query so as to tell when
+     * a query's transactions come out of order
+     */
+    private static class WorkingHandler implements ITransactionHandler {
+        private final long workMicros;
+        private final Map<Long, Serializable> queries = new ConcurrentHashMap<Long, Serializable>();
+        private final Map<Serializable, Long> executed = new ConcurrentHashMap<Serializable, Long>();
+        private final Map<Serializable, Long> decided = new ConcurrentHashMap<Serializable, Long>();
+
+        volatile String outOfOrder;
+
+        WorkingHandler(long workMicros) {
+            this.workMicros = workMicros;
+        }
+
+        public boolean execute(long transactionID, Serializable query) {
+            queries.put(transactionID, query);
+            check(executed, "executed", transactionID, query);
+            LockSupport.parkNanos(workMicros * 1000L);
+            return true;
+        }
+
+        public void result(long transactionID, boolean result) {
+            Serializable query = queries.remove(transactionID);
+            check(decided, "decided", transactionID, query);
+        }
+
+        private void check(Map<Serializable, Long> last, String what, long transactionID, Serializable query) {
+            // only the ordered runs have more than one query
+            if (query == null || query.equals("query")) {
+                return;
+            }
+
+            Long before = last.put(query, transactionID);
+
+            if (before != null && before > transactionID) {
+                outOfOrder = query + ": transaction " + transactionID + " " + what + " after " + before;
+            }
+        }
+    }
+
+    /**
+     * Logs every prepare of a call with a single fsync
+     */
+    private static class BatchLoggingHandler extends LoggingHandler implements IBatchTransactionHandler<Serializable> {
+        BatchLoggingHandler(long fsyncMicros) {
+            super(fsyncMicros);
+        }
+
+        public boolean[] executeBatch(long[] transactionIDs, List<Serializable> queries) {
+            fsync();
+
+            boolean[] votes = new boolean[queries.size()];
+            Arrays.fill(votes, true);
+
+            return votes;
+        }
+    }
+
+    /**
+     * Closes its own session instead of voting, as if the process died
+     */
+    private static class CrashingHandler implements ITransactionHandler {
+        private final ZooKeeper zk;
+
+        CrashingHandler(ZooKeeper zk) {
+            this.zk = zk;
+        }
+
+        public boolean execute(long transactionID, Serializable query) {
+            try {
+                zk.close();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        public void result(long transactionID, boolean result) {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package zk_bench.util;
+
+import java.util.Arrays;
+
+/**
+ * Records latency samples (in nanoseconds) and reports exact percentiles.
+ * Every sample is kept, which is fine for the few million operations a
+ * benchmark run produces.
+ *
+ */
+public class Histogram {
+    private long[] samples = new long[1024];
+    private int count;
+
+    /**
+     * Records one sample.
+     * @param nanos latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    /**
+     * Get how many samples were recorded.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Drops every recorded sample.
+     */
+    public synchronized void reset() {
+        count = 0;
+    }
+
+    /**
+     * Get the sample value at the given percentile.
+     * @param percentile between 0 and 100
+     * @return latency in nanoseconds, 0 when nothing was recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with decorrelated jitter: each delay is picked at
+ * random between baseDelay and three times the previous one, capped at
+ * maxDelay. Clients which failed together spread out their retries instead
+ * of hitting the ensemble in lockstep.
+ *
+ */
+public class ExponentialBackoffRetry implements RetryPolicy {
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int maxRetries;
+    private final Random random = new Random();
+
+    /**
+     * @param baseDelay the shortest delay in milliseconds
+     * @param maxDelay the longest delay in milliseconds
+     * @param maxRetries retries before giving up, the first attempt not included
+     */
+    public ExponentialBackoffRetry(long baseDelay, long maxDelay, int maxRetries) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxRetries = maxRetries;
+    }
+
+    public long getDelay(int retries, long lastDelay) {
+        if (retries >= maxRetries) {
+            return -1;
+        }
+        // the first retry is spread too, as if after a baseDelay one
+        long upper = Math.max(baseDelay, lastDelay) * 3;
+        long delay;
+        synchronized (random) {
+            delay = baseDelay + (long) (random.nextDouble() * (upper - baseDelay));
+        }
+        return Math.min(maxDelay, delay);
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks on a tree of paths with intention modes, so a subtree lock
+ * (<tt>/tenants/42</tt>) excludes the locks inside it while locks on
+ * different leaves (<tt>/tenants/42/orders/9</tt>) go on concurrently.
+ * <p/> Locking a path in {@link Mode#S} or {@link Mode#X} first takes
+ * {@link Mode#IS} or {@link Mode#IX} on each of its ancestors, top down, so
+ * the canonical order is the path order; the nodes of the whole chain are
+ * queued at once as by a {@link MultiLock}. Every path has its own lock dir
+ * (flat, under the root dir) where nodes queue as in {@link WriteLock}, each
+ * waiting only for the nearest incompatible node before it:
+ * <pre>
+ *       IS  IX  S   X
+ *   IS  y   y   y   n
+ *   IX  y   y   n   n
+ *   S   y   n   y   n
+ *   X   n   n   n   n
+ * </pre>
+ * S and X nodes are named like {@link ReadLock} and {@link WriteLock} nodes,
+ * so those work on a path's dir too.
+ * <p/> Locks in compatible modes (intentions, S) are shared by the threads
+ * using a manager, so a manager holds one node per path and mode. A manager
+ * refuses a lock that would wait for one of its own, say X on a path it
+ * holds in X already or holds locks under: use one manager (session) per
+ * thread for those. Like {@link WriteLock}, the lock dirs are created as
+ * needed but not the root dir.
+ *
+ */
+public class HierarchicalLockManager extends ProtocolSupport {
+    /**
+     * lock modes, callers lock paths in S or X, the manager takes IS and IX
+     */
+    public enum Mode {
+        /** intention to take shared locks below */
+        IS("is-"),
+        /** intention to take exclusive locks below */
+        IX("ix-"),
+        /** shared */
+        S(ReadLock.NODE_PREFIX),
+        /** exclusive */
+        X("x-");
+
+        private final String nodePrefix;
+
+        private Mode(String nodePrefix) {
+            this.nodePrefix = nodePrefix;
+        }
+
+        /**
+         * tells if another holder may have the lock in the given mode
+         * while we have it in this one
+         */
+        public boolean isCompatible(Mode other) {
+            switch (this) {
+                case IS: return other != X;
+                case IX: return other == IS || other == IX;
+                case S: return other == IS || other == S;
+                default: return false;
+            }
+        }
+
+        /**
+         * the mode of a lock node, unknown nodes are taken as exclusive
+         */
+        static Mode of(String name) {
+            if (name.startsWith("is-")) {
+                return IS;
+            } else if (name.startsWith("ix-")) {
+                return IX;
+            } else if (name.startsWith(ReadLock.NODE_PREFIX)) {
+                return S;
+            }
+            return X;
+        }
+    }
+
+    private final String root;
+    private final List<ACL> lockAcl;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * zookeeper contructor for the lock manager
+     * @param zookeeper zookeeper client instance
+     * @param root the dir under which the lock dirs are created
+     * @param acl the acls that you want to use for all the paths, 
+     * if null world read/write is used.
+     */
+    public HierarchicalLockManager(ZooKeeper zookeeper, String root, List<ACL> acl) {
+        super(zookeeper);
+        this.root = root;
+        this.lockAcl = acl;
+        if (acl != null) {
+            setAcl(acl);
+        }
+    }
+
+    /**
+     * Waits until the path is locked in the given mode, taking intention
+     * locks on its ancestors, or the timeout elapses
+     * @param path the path to lock, e.g. /tenants/42
+     * @param mode S or X
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if locked, false on timeout or if the manager is closed;
+     * no lock is held then
+     * @throws IllegalArgumentException on a path not starting with / or an
+     * intention mode
+     * @throws IllegalStateException if the lock would wait for another
+     * one of this manager
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean tryLock(String path, Mode mode, long timeout, TimeUnit unit)
+        throws KeeperException, InterruptedException {
+        if (mode != Mode.S && mode != Mode.X) {
+            throw new IllegalArgumentException("Paths are locked in S or X, not " + mode);
+        }
+        if (isClosed()) {
+            return false;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Mode intention = mode == Mode.S ? Mode.IS : Mode.IX;
+        List<Entry> chain = new ArrayList<Entry>();
+        boolean locked = false;
+
+        try {
+            for (String ancestor : ancestors(path)) {
+                chain.add(enter(ancestor, intention));
+            }
+            chain.add(enter(path, mode));
+            locked = take(chain, deadline);
+            return locked;
+        } finally {
+            if (!locked) {
+                for (Entry e : chain) {
+                    leave(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases a path locked by {@link #tryLock} and the intention locks
+     * on its ancestors
+     * @param path the locked path
+     * @param mode the mode it was locked in
+     * @throws IllegalStateException if the path isn't locked in that mode
+     */
+    public void unlock(String path, Mode mode) {
+        Entry target;
+        synchronized (entries) {
+            target = entries.get(key(path, mode));
+        }
+        if (target == null || target.holds == 0) {
+            throw new IllegalStateException(path + " is not locked in " + mode);
+        }
+        release(target);
+
+        Mode intention = mode == Mode.S ? Mode.IS : Mode.IX;
+        List<String> ancestors = ancestors(path);
+        for (int i = ancestors.size() - 1; i >= 0; i--) {
+            Entry e;
+            synchronized (entries) {
+                e = entries.get(key(ancestors.get(i), intention));
+            }
+            if (e != null) {
+                release(e);
+            }
+        }
+    }
+
+    /**
+     * return the lock dir of a path
+     * @param path the locked path
+     * @return the dir its lock nodes queue in
+     */
+    public String getLockDir(String path) {
+        // flat, so queues and subtrees don't mix in one children list
+        return root + "/" + path.substring(1).replace("%", "%25").replace("/", "%2F");
+    }
+
+    @Override
+    protected void doClose() {
+        synchronized (entries) {
+            for (Entry e : entries.values()) {
+                e.lock.close();
+            }
+        }
+    }
+
+    /**
+     * registers for a lock, shared with the threads which hold it already
+     * in an intention mode or S
+     */
+    private Entry enter(String path, Mode mode) {
+        synchronized (entries) {
+            for (Mode other : Mode.values()) {
+                if (entries.containsKey(key(path, other)) && !mode.isCompatible(other)) {
+                    throw new IllegalStateException("Locking " + path + " in " + mode +
+                                                    " would wait for our own " + other + " lock");
+                }
+            }
+            Entry e = entries.get(key(path, mode));
+            if (e == null) {
+                IntentionLock lock = new IntentionLock(zookeeper, getLockDir(path), lockAcl, mode);
+                lock.copyRetrySettings(this);
+                e = new Entry(key(path, mode), lock);
+                entries.put(e.key, e);
+            }
+            e.users++;
+            return e;
+        }
+    }
+
+    /**
+     * takes a chain of locks, top down. those no thread of ours holds yet
+     * are queued all at once by a {@link MultiLock}, which still waits for
+     * them in order.
+     */
+    private boolean take(List<Entry> chain, long deadline) throws KeeperException, InterruptedException {
+        List<Entry> guarded = new ArrayList<Entry>(chain.size());
+        try {
+            List<WriteLock> needed = new ArrayList<WriteLock>(chain.size());
+            for (Entry e : chain) {
+                if (!e.guard.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+                guarded.add(e);
+                if (e.holds == 0) {
+                    needed.add(e.lock);
+                }
+            }
+            if (!needed.isEmpty() &&
+                !new MultiLock(needed).tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            for (Entry e : chain) {
+                e.holds++;
+            }
+            return true;
+        } finally {
+            for (Entry e : guarded) {
+                e.guard.unlock();
+            }
+        }
+    }
+
+    private void release(Entry e) {
+        e.guard.lock();
+        try {
+            if (--e.holds == 0) {
+                // async, the next lock of this client is sent after it anyway
+                e.lock.cancel();
+            }
+        } finally {
+            e.guard.unlock();
+        }
+        leave(e);
+    }
+
+    private void leave(Entry e) {
+        synchronized (entries) {
+            if (--e.users == 0) {
+                entries.remove(e.key);
+            }
+        }
+    }
+
+    private static List<String> ancestors(String path) {
+        if (!path.startsWith("/") || path.length() == 1 || path.endsWith("/")) {
+            throw new IllegalArgumentException("Not a lockable path: " + path);
+        }
+        List<String> ancestors = new ArrayList<String>();
+        for (int i = path.indexOf('/', 1); i > 0; i = path.indexOf('/', i + 1)) {
+            ancestors.add(path.substring(0, i));
+        }
+        return ancestors;
+    }
+
+    private static String key(String path, Mode mode) {
+        return mode.name() + " " + path;
+    }
+
+    /**
+     * a lock on one path in one mode, with the manager threads using it
+     */
+    private static class Entry {
+        final String key;
+        final IntentionLock lock;
+        /** taken by one thread at a time, while it's being acquired or released */
+        final ReentrantLock guard = new ReentrantLock();
+        /** threads holding it, guarded by guard */
+        int holds;
+        /** threads holding or waiting for it, guarded by the entries map */
+        int users;
+
+        Entry(String key, IntentionLock lock) {
+            this.key = key;
+            this.lock = lock;
+        }
+    }
+
+    /**
+     * a lock node which waits for the nearest incompatible node before it
+     */
+    static class IntentionLock extends WriteLock {
+        private final Mode mode;
+
+        IntentionLock(ZooKeeper zookeeper, String dir, List<ACL> acl, Mode mode) {
+            super(zookeeper, dir, acl);
+            this.mode = mode;
+        }
+
+        @Override
+        String getNodePrefix() {
+            return mode.nodePrefix;
+        }
+
+        @Override
+        boolean isBlockedBy(String name) {
+            return !mode.isCompatible(Mode.of(name));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+/**
+ * The original retry pattern: retryCount attempts, waiting attempts * delay
+ * between them. Every client hit by the same hiccup retries at the same
+ * moments, prefer {@link ExponentialBackoffRetry} for many clients.
+ *
+ */
+public class LinearRetry implements RetryPolicy {
+    private final int retryCount;
+    private final long retryDelay;
+
+    /**
+     * @param retryCount attempts, the first one included
+     * @param retryDelay the delay step in milliseconds
+     */
+    public LinearRetry(int retryCount, long retryDelay) {
+        this.retryCount = retryCount;
+        this.retryDelay = retryDelay;
+    }
+
+    public long getDelay(int retries, long lastDelay) {
+        if (retries >= retryCount - 1) {
+            return -1;
+        }
+        return retries * retryDelay;
+    }
+}
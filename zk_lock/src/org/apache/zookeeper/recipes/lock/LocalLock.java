@@ -0,0 +1,241 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A reentrant lock shared by the threads of a process, over a single
+ * {@link WriteLock} node. Get one from a {@link LocalLockRegistry}.
+ * <p/> Threads queue fairly on a local lock; the first one in takes the
+ * zookeeper lock. On release, if another local thread is queued the node is
+ * kept and the lock handed over locally, up to the registry's local handoff
+ * limit; otherwise the node is deleted and other processes get their turn.
+ * Reentrant acquisitions only count holds.
+ *
+ */
+public class LocalLock {
+    private final LocalLockRegistry registry;
+    private final WriteLock zkLock;
+    private final ReentrantLock local = new ReentrantLock(true);
+    private final AtomicLong localHandoffs = new AtomicLong();
+    private final AtomicLong zkAcquisitions = new AtomicLong();
+
+    // guarded by local
+    private boolean zkHeld;
+    private int handoffsInARow;
+
+    LocalLock(LocalLockRegistry registry, WriteLock zkLock) {
+        this.registry = registry;
+        this.zkLock = zkLock;
+    }
+
+    /**
+     * Waits until this thread holds the lock
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the lock is closed
+     */
+    public void lockInterruptibly() throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            local.lockInterruptibly();
+        } catch (InterruptedException e) {
+            releaseIdleNode();
+            throw e;
+        }
+        try {
+            // reentrant holds always find the node held
+            if (!zkHeld) {
+                zkLock.lockInterruptibly();
+                acquired(false);
+            } else if (local.getHoldCount() == 1) {
+                acquired(true);
+            }
+        } catch (KeeperException e) {
+            abandon();
+            throw e;
+        } catch (InterruptedException e) {
+            abandon();
+            throw e;
+        } catch (RuntimeException e) {
+            abandon();
+            throw e;
+        }
+        registry.getWaitHistogram().record(System.nanoTime() - start);
+    }
+
+    /**
+     * Waits until this thread holds the lock or the timeout elapses
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if the lock was acquired, false on timeout or if the
+     * lock is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        boolean queued;
+        try {
+            queued = local.tryLock(timeout, unit);
+        } catch (InterruptedException e) {
+            releaseIdleNode();
+            throw e;
+        }
+        if (!queued) {
+            registry.getWaitHistogram().recordTimeout();
+            releaseIdleNode();
+            return false;
+        }
+        try {
+            if (!zkHeld) {
+                if (!zkLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    registry.getWaitHistogram().recordTimeout();
+                    abandon();
+                    return false;
+                }
+                acquired(false);
+            } else if (local.getHoldCount() == 1) {
+                acquired(true);
+            }
+        } catch (KeeperException e) {
+            abandon();
+            throw e;
+        } catch (InterruptedException e) {
+            abandon();
+            throw e;
+        } catch (RuntimeException e) {
+            abandon();
+            throw e;
+        }
+        registry.getWaitHistogram().record(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Releases one hold of this thread; the last one hands the lock to
+     * the next local thread or gives up the node
+     * @throws IllegalMonitorStateException if this thread doesn't hold the lock
+     */
+    public void unlock() {
+        if (!local.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("Lock on " + getDir() + " not held by this thread");
+        }
+        try {
+            if (local.getHoldCount() == 1 && zkHeld) {
+                if (local.hasQueuedThreads() && handoffsInARow < registry.getMaxLocalHandoffs()) {
+                    // the next local thread finds the node held
+                    handoffsInARow++;
+                } else {
+                    giveUpNode();
+                }
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    /**
+     * return true if the current thread holds the lock
+     */
+    public boolean isHeldByCurrentThread() {
+        return local.isHeldByCurrentThread();
+    }
+
+    /**
+     * return how many holds the current thread has on the lock
+     */
+    public int getHoldCount() {
+        return local.getHoldCount();
+    }
+
+    /**
+     * return how many acquisitions got the lock from another local thread,
+     * with no zookeeper round trip
+     */
+    public long getLocalHandoffs() {
+        return localHandoffs.get();
+    }
+
+    /**
+     * return how many acquisitions had to queue a node in zookeeper
+     */
+    public long getZkAcquisitions() {
+        return zkAcquisitions.get();
+    }
+
+    /**
+     * return the parent dir for lock
+     * @return the parent dir used for locks.
+     */
+    public String getDir() {
+        return zkLock.getDir();
+    }
+
+    void close() {
+        zkLock.close();
+    }
+
+    private void acquired(boolean handedOff) {
+        if (handedOff) {
+            localHandoffs.incrementAndGet();
+        } else {
+            zkHeld = true;
+            handoffsInARow = 0;
+            zkAcquisitions.incrementAndGet();
+        }
+    }
+
+    /**
+     * leaves after a failed outermost acquisition, we hold local
+     */
+    private void abandon() {
+        try {
+            if (local.getHoldCount() == 1 && zkHeld && !local.hasQueuedThreads()) {
+                giveUpNode();
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    /**
+     * a thread which gave up waiting locally may have been why the
+     * node was kept
+     */
+    private void releaseIdleNode() {
+        if (local.tryLock()) {
+            try {
+                if (local.getHoldCount() == 1 && zkHeld && !local.hasQueuedThreads()) {
+                    giveUpNode();
+                }
+            } finally {
+                local.unlock();
+            }
+        }
+    }
+
+    private void giveUpNode() {
+        zkHeld = false;
+        zkLock.unlock();
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process wide {@link LocalLock}s over one zookeeper client, one per dir.
+ * <p/> Threads of the same process share the session, so instead of each
+ * queueing its own node they queue locally and only one {@link WriteLock}
+ * node per dir is created; handing the lock to a local thread costs no
+ * zookeeper round trip. Share one registry per client: two registries,
+ * or plain WriteLocks of the same client, on the same dir each queue a node
+ * of their own (node names carry a tag per lock instance) and the threads
+ * behind them no longer share it.
+ *
+ */
+public class LocalLockRegistry {
+    private final ZooKeeper zookeeper;
+    private final List<ACL> acl;
+    private final ConcurrentMap<String, LocalLock> locks = new ConcurrentHashMap<String, LocalLock>();
+    private final WaitHistogram waitHistogram = new WaitHistogram();
+    private volatile int maxLocalHandoffs = 64;
+
+    /**
+     * @param zookeeper the zookeeper client instance shared by the threads
+     * @param acl the acls that you want to use for all the paths, 
+     * if null world read/write is used.
+     */
+    public LocalLockRegistry(ZooKeeper zookeeper, List<ACL> acl) {
+        this.zookeeper = zookeeper;
+        this.acl = acl;
+    }
+
+    /**
+     * return the lock for a dir, created on first use
+     * @param dir the parent path you want to use for locking
+     * @return the lock shared by every thread using this registry
+     */
+    public LocalLock getLock(String dir) {
+        LocalLock lock = locks.get(dir);
+        if (lock == null) {
+            LocalLock created = new LocalLock(this, new WriteLock(zookeeper, dir, acl));
+            lock = locks.putIfAbsent(dir, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * return how many times in a row a lock goes to a local thread without
+     * giving up its node, so other processes aren't starved
+     * @return the local handoff limit
+     */
+    public int getMaxLocalHandoffs() {
+        return maxLocalHandoffs;
+    }
+
+    /**
+     * set the local handoff limit (default 64), 0 always gives up the node
+     * @param maxLocalHandoffs the local handoff limit
+     */
+    public void setMaxLocalHandoffs(int maxLocalHandoffs) {
+        this.maxLocalHandoffs = maxLocalHandoffs;
+    }
+
+    /**
+     * return the wait times of every lock of this registry, local queueing
+     * included
+     * @return the wait histogram
+     */
+    public WaitHistogram getWaitHistogram() {
+        return waitHistogram;
+    }
+
+    /**
+     * Closes every lock, the zookeeper client is kept open
+     */
+    public void close() {
+        for (LocalLock lock : locks.values()) {
+            lock.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A lock taken by {@link WriteLock#lockAsync()}. It may be released from
+ * any thread without blocking.
+ *
+ */
+public class LockHandle {
+    private final WriteLock lock;
+    private final String id;
+    private final long generation;
+
+    LockHandle(WriteLock lock, String id, long generation) {
+        this.lock = lock;
+        this.id = id;
+        this.generation = generation;
+    }
+
+    /**
+     * return the lock this handle was taken on
+     * @return the lock
+     */
+    public WriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * return the path of the node which got the lock
+     * @return the node path
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * tells if the lock is still held through this handle
+     * @return false once released, even if the lock was taken again on
+     * the same leased node, or if the node was lost
+     */
+    public boolean isHeld() {
+        return lock.holds(id, generation);
+    }
+
+    /**
+     * releases the lock, the listener is told on the executor of the lock.
+     * does nothing if it was released already, even if the lock was taken
+     * again since on the same leased node
+     * @return a future completed once the node is deleted, or kept for a
+     * lease
+     */
+    public CompletableFuture<Void> unlock() {
+        return lock.unlockAsync(id, generation);
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes a set of {@link WriteLock}s as one, e.g. both accounts of a
+ * transfer. <p/> The dirs are put in a canonical (sorted) order. A node is
+ * queued in every dir at once and every queue is read at once, so with no
+ * contention the whole set costs two round trips. Otherwise the nodes past
+ * the first lock we don't own are given up and the rest are taken one by
+ * one in canonical order: a client only ever waits while holding locks
+ * earlier in that order, so no two clients wait on each other.
+ * <p/> Node names carry a tag of their lock instance, so other locks of
+ * the same client on the same dirs queue next to ours as other clients
+ * would; the lock isn't reentrant, a thread holding one of them waits on
+ * itself.
+ *
+ */
+public class MultiLock {
+    private static final Logger LOG = Logger.getLogger(MultiLock.class);
+
+    private final ZooKeeper zookeeper;
+    private final List<String> dirs;
+    private final List<WriteLock> locks;
+    private WaitHistogram waitHistogram = new WaitHistogram();
+
+    /**
+     * zookeeper contructor for multilock
+     * @param zookeeper zookeeper client instance
+     * @param dirs the parent paths of the locks you want to take together
+     * @param acl the acls that you want to use for all the paths, 
+     * if null world read/write is used.
+     */
+    public MultiLock(ZooKeeper zookeeper, Collection<String> dirs, List<ACL> acl) {
+        this.zookeeper = zookeeper;
+        this.dirs = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(dirs)));
+        this.locks = new ArrayList<WriteLock>(this.dirs.size());
+        for (String dir : this.dirs) {
+            locks.add(new WriteLock(zookeeper, dir, acl));
+        }
+    }
+
+    /**
+     * takes locks already in canonical order, e.g. intention locks
+     * down a path
+     * @param locks the locks, at least one, all of the same client
+     */
+    MultiLock(List<? extends WriteLock> locks) {
+        this.zookeeper = locks.get(0).getZookeeper();
+        this.locks = new ArrayList<WriteLock>(locks);
+        List<String> lockDirs = new ArrayList<String>(locks.size());
+        for (WriteLock lock : locks) {
+            lockDirs.add(lock.getDir());
+        }
+        this.dirs = Collections.unmodifiableList(lockDirs);
+    }
+
+    /**
+     * Waits until every lock is acquired or the timeout elapses. On
+     * timeout no lock is held and no node is left queued.
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if every lock was acquired, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        return acquire(start, start + unit.toNanos(timeout), true);
+    }
+
+    /**
+     * Waits until every lock is acquired.
+     * @throws InterruptedException if interrupted while waiting, no
+     * lock is held then
+     * @throws IllegalStateException if a lock is closed
+     */
+    public synchronized void lockInterruptibly() throws KeeperException, InterruptedException {
+        if (!acquire(System.nanoTime(), 0, false)) {
+            throw new IllegalStateException("Locks on " + dirs + " are closed");
+        }
+    }
+
+    /**
+     * Releases every lock, the deletes are sent at once and not waited for
+     */
+    public synchronized void unlock() {
+        for (WriteLock lock : locks) {
+            lock.cancel();
+        }
+    }
+
+    /**
+     * Returns true if every lock is owned
+     */
+    public synchronized boolean isOwner() {
+        for (WriteLock lock : locks) {
+            if (!lock.isOwner()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * return the lock dirs in the order they are taken
+     * @return the lock dirs
+     */
+    public List<String> getDirs() {
+        return dirs;
+    }
+
+    /**
+     * return the time callers waited for the whole set
+     * @return the wait histogram
+     */
+    public WaitHistogram getWaitHistogram() {
+        return waitHistogram;
+    }
+
+    /**
+     * record the wait times in a different histogram, e.g. one shared
+     * by several multilocks
+     * @param waitHistogram the histogram to use
+     */
+    public void setWaitHistogram(WaitHistogram waitHistogram) {
+        this.waitHistogram = waitHistogram;
+    }
+
+    /**
+     * Closes every lock
+     */
+    public void close() {
+        for (WriteLock lock : locks) {
+            lock.close();
+        }
+    }
+
+    private boolean acquire(long start, long deadline, boolean timed)
+        throws KeeperException, InterruptedException {
+        boolean acquired = false;
+        try {
+            int waitFrom = queueAll(timed, deadline) ? firstNotOwned(timed, deadline) : -1;
+            if (waitFrom >= 0) {
+                for (int i = waitFrom + 1; i < locks.size(); i++) {
+                    locks.get(i).cancel();
+                }
+                acquired = true;
+                for (int i = waitFrom; i < locks.size() && acquired; i++) {
+                    if (timed) {
+                        acquired = locks.get(i).tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } else {
+                        locks.get(i).lockInterruptibly();
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            // closed
+            acquired = false;
+        } finally {
+            if (!acquired) {
+                unlock();
+            }
+        }
+        if (acquired) {
+            waitHistogram.record(System.nanoTime() - start);
+        } else if (timed) {
+            waitHistogram.recordTimeout();
+        }
+        return acquired;
+    }
+
+    /**
+     * creates our node in every dir at once. Creates which fail or get no
+     * answer are done again the blocking way, a lost create's node being
+     * looked for first.
+     * @return false if the deadline passed first, nodes created by then are
+     * ours (dropped by unlock), those created later are deleted
+     */
+    private boolean queueAll(boolean timed, long deadline) throws KeeperException, InterruptedException {
+        final int[] rcs = new int[locks.size()];
+        final String[] paths = new String[locks.size()];
+        final boolean[] answered = new boolean[locks.size()];
+        final boolean[] abandoned = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(locks.size());
+
+        for (int i = 0; i < locks.size(); i++) {
+            WriteLock lock = locks.get(i);
+            if (lock.isCreateLost()) {
+                // a node of ours may be queued already, don't queue a second
+                rcs[i] = Code.CONNECTIONLOSS.intValue();
+                answered[i] = true;
+                done.countDown();
+                continue;
+            }
+            lock.createNodeAsync(new StringCallback() {
+                public void processResult(int rc, String path, Object ctx, String name) {
+                    int i = (Integer) ctx;
+                    synchronized (rcs) {
+                        if (abandoned[0]) {
+                            if (rc == Code.OK.intValue()) {
+                                deleteLate(name);
+                            }
+                        } else {
+                            rcs[i] = rc;
+                            paths[i] = name;
+                            answered[i] = true;
+                        }
+                    }
+                    done.countDown();
+                }
+            }, i);
+        }
+
+        if (!await(done, timed, deadline)) {
+            synchronized (rcs) {
+                abandoned[0] = true;
+                for (int i = 0; i < locks.size(); i++) {
+                    if (!answered[i]) {
+                        // its answer may be lost on the way, look for it next time
+                        locks.get(i).markCreateLost();
+                    } else if (rcs[i] == Code.OK.intValue()) {
+                        locks.get(i).adoptNode(paths[i]);
+                    }
+                }
+            }
+            return false;
+        }
+
+        KeeperException failure = null;
+        for (int i = 0; i < locks.size(); i++) {
+            WriteLock lock = locks.get(i);
+            if (rcs[i] == Code.CONNECTIONLOSS.intValue()) {
+                // the server may have made our node anyway
+                lock.markCreateLost();
+            }
+            if (rcs[i] == Code.OK.intValue()) {
+                lock.adoptNode(paths[i]);
+            } else if (failure == null && (rcs[i] == Code.NONODE.intValue()
+                       || rcs[i] == Code.CONNECTIONLOSS.intValue())) {
+                // first use of this dir or a lost create, the slow way
+                try {
+                    lock.queueNode(timed ? deadline : 0);
+                } catch (KeeperException e) {
+                    failure = e;
+                }
+            } else if (failure == null) {
+                failure = KeeperException.create(Code.get(rcs[i]), dirs.get(i));
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return true;
+    }
+
+    /**
+     * deletes a node whose create was answered after we gave up
+     */
+    private void deleteLate(String path) {
+        zookeeper.delete(path, -1, new VoidCallback() {
+            public void processResult(int rc, String path, Object ctx) {
+                if (rc != Code.OK.intValue() && rc != Code.NONODE.intValue()) {
+                    LOG.warn("Could not remove late node " + path + ": " + Code.get(rc));
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * waits for the replies, up to the deadline if timed
+     * @return false if the deadline passed first
+     */
+    private static boolean await(CountDownLatch done, boolean timed, long deadline) throws InterruptedException {
+        if (!timed) {
+            done.await();
+            return true;
+        }
+        return done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * reads every queue at once, queues whose read fails with a connection
+     * loss are read again, retrying
+     * @return the first lock (in canonical order) we don't own, the lock
+     * count if we own them all, -1 if the deadline passed first
+     */
+    private int firstNotOwned(boolean timed, long deadline) throws KeeperException, InterruptedException {
+        final int[] rcs = new int[locks.size()];
+        final List<List<String>> children = new ArrayList<List<String>>(Collections.<List<String>>nCopies(locks.size(), null));
+        final CountDownLatch done = new CountDownLatch(locks.size());
+
+        for (int i = 0; i < locks.size(); i++) {
+            zookeeper.getChildren(dirs.get(i), false, new ChildrenCallback() {
+                public void processResult(int rc, String path, Object ctx, List<String> names) {
+                    int i = (Integer) ctx;
+                    rcs[i] = rc;
+                    children.set(i, names);
+                    done.countDown();
+                }
+            }, i);
+        }
+        if (!await(done, timed, deadline)) {
+            return -1;
+        }
+
+        for (int i = 0; i < locks.size(); i++) {
+            List<String> names = children.get(i);
+            if (rcs[i] == Code.CONNECTIONLOSS.intValue()) {
+                names = readChildren(locks.get(i), timed ? deadline : 0);
+            } else if (rcs[i] != Code.OK.intValue()) {
+                throw KeeperException.create(Code.get(rcs[i]), dirs.get(i));
+            }
+            if (!locks.get(i).ownsAmong(names)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Waiting from " + dirs.get(i) + " on, " + i + " of " + dirs.size() + " locks owned");
+                }
+                return i;
+            }
+        }
+        return locks.size();
+    }
+
+    /**
+     * lists a lock dir, retrying as the lock would
+     */
+    private List<String> readChildren(final WriteLock lock, long deadline) throws KeeperException, InterruptedException {
+        final List<List<String>> names = new ArrayList<List<String>>(1);
+        lock.retryOperation(new ZooKeeperOperation() {
+            public boolean execute() throws KeeperException, InterruptedException {
+                names.add(zookeeper.getChildren(lock.getDir(), false));
+                return true;
+            }
+        }, deadline);
+        return names.get(0);
+    }
+}
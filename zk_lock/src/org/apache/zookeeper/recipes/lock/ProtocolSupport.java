@@ -44,6 +44,9 @@ class ProtocolSupport {
     private long retryDelay = 500L;
     private int retryCount = 10;
     private List<ACL> acl = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+    private RetryPolicy retryPolicy;
+    private RetryBudget retryBudget;
+    private RetryMetrics retryMetrics = new RetryMetrics();
 
     public ProtocolSupport(ZooKeeper zookeeper) {
         this.zookeeper = zookeeper;
@@ -99,6 +102,69 @@ class ProtocolSupport {
         this.retryDelay = retryDelay;
     }
 
+    /**
+     * get the retry policy, by default a {@link LinearRetry} over
+     * the retry delay
+     * @return the retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        RetryPolicy policy = retryPolicy;
+        return policy != null ? policy : new LinearRetry(retryCount, retryDelay);
+    }
+
+    /**
+     * Sets the retry policy, the retry delay isn't used then
+     * @param retryPolicy the retry policy, null for the default one
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * get the retry budget
+     * @return the retry budget, null if retries are only bounded by the policy
+     */
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Sets a retry budget, usually shared by the protocols of a client
+     * @param retryBudget the retry budget, null for none
+     */
+    public void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    /**
+     * get the retry metrics
+     * @return the retry metrics
+     */
+    public RetryMetrics getRetryMetrics() {
+        return retryMetrics;
+    }
+
+    /**
+     * Records retries in different metrics, e.g. shared by the
+     * protocols of a client
+     * @param retryMetrics the metrics to use
+     */
+    public void setRetryMetrics(RetryMetrics retryMetrics) {
+        this.retryMetrics = retryMetrics;
+    }
+
+    /**
+     * Uses the retry policy, budget and metrics of another protocol,
+     * for protocols built out of others
+     * @param other the protocol to copy the settings of
+     */
+    void copyRetrySettings(ProtocolSupport other) {
+        this.retryDelay = other.retryDelay;
+        this.retryPolicy = other.retryPolicy;
+        this.retryBudget = other.retryBudget;
+        this.retryMetrics = other.retryMetrics;
+    }
+
     /**
      * Allow derived classes to perform 
      * some custom closing operations to release resources
@@ -114,23 +180,55 @@ class ProtocolSupport {
      */
     protected Object retryOperation(ZooKeeperOperation operation) 
         throws KeeperException, InterruptedException {
-        KeeperException exception = null;
-        for (int i = 0; i < retryCount; i++) {
+        return retryOperation(operation, 0);
+    }
+
+    /**
+     * Perform the given operation, retrying if the connection fails, as
+     * long as the retry policy and budget allow and the deadline isn't passed
+     * @param deadline the System.nanoTime() by which we must be done
+     * retrying, 0 for none
+     * @return object. it needs to be cast to the callee's expected 
+     * return type.
+     */
+    protected Object retryOperation(ZooKeeperOperation operation, long deadline) 
+        throws KeeperException, InterruptedException {
+        RetryPolicy policy = null;
+        RetryMetrics metrics = retryMetrics;
+        long delay = 0;
+        for (int i = 0; ; i++) {
             try {
+                metrics.attempt();
                 return operation.execute();
             } catch (KeeperException.SessionExpiredException e) {
                 LOG.warn("Session expired for: " + zookeeper + " so reconnecting due to: " + e, e);
                 throw e;
             } catch (KeeperException.ConnectionLossException e) {
-                if (exception == null) {
-                    exception = e;
-                }
                 LOG.debug("Attempt " + i + " failed with connection loss so " +
                 		"attempting to reconnect: " + e, e);
-                retryDelay(i);
+                if (policy == null) {
+                    policy = getRetryPolicy();
+                }
+                delay = policy.getDelay(i, delay);
+                if (delay < 0) {
+                    metrics.exhausted();
+                    throw e;
+                }
+                if (deadline != 0 && System.nanoTime() + delay * 1000000L - deadline > 0) {
+                    metrics.deadlineReached();
+                    throw e;
+                }
+                RetryBudget budget = retryBudget;
+                if (budget != null && !budget.tryAcquire()) {
+                    metrics.budgetSpent();
+                    throw e;
+                }
+                metrics.retry(delay);
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
             }
         }
-        throw exception;
     }
 
     /**
@@ -175,18 +273,4 @@ class ProtocolSupport {
     protected boolean isClosed() {
         return closed.get();
     }
-
-    /**
-     * Performs a retry delay if this is not the first attempt
-     * @param attemptCount the number of the attempts performed so far
-     */
-    protected void retryDelay(int attemptCount) {
-        if (attemptCount > 0) {
-            try {
-                Thread.sleep(attemptCount * retryDelay);
-            } catch (InterruptedException e) {
-                LOG.debug("Failed to sleep: " + e, e);
-            }
-        }
-    }
 }
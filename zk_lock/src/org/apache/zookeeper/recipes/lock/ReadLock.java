@@ -0,0 +1,74 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.List;
+
+/**
+ * The shared half of a {@link ReadWriteLock}. Read lock nodes queue in the
+ * same dir as the {@link WriteLock} nodes; a reader owns the lock as soon as
+ * no write node is queued before it, so any number of readers hold it at once.
+ * <p/> A reader only watches the nearest write node before it, so a release
+ * only wakes the readers queued behind that writer. Writers still watch their
+ * immediate predecessor, reader or not, which keeps the queue herd free.
+ *
+ */
+public class ReadLock extends WriteLock {
+    /** read nodes are named s-&lt;session&gt;-&lt;sequence&gt;, anything else is a writer */
+    static final String NODE_PREFIX = "s-";
+
+    /**
+     * zookeeper contructor for readlock
+     * @param zookeeper zookeeper client instance
+     * @param dir the parent path you want to use for locking
+     * @param acls the acls that you want to use for all the paths, 
+     * if null world read/write is used.
+     */
+    public ReadLock(ZooKeeper zookeeper, String dir, List<ACL> acl) {
+        super(zookeeper, dir, acl);
+    }
+
+    /**
+     * zookeeper contructor for readlock with callback
+     * @param zookeeper the zookeeper client instance
+     * @param dir the parent path you want to use for locking
+     * @param acl the acls that you want to use for all the paths
+     * @param callback the call back instance
+     */
+    public ReadLock(ZooKeeper zookeeper, String dir, List<ACL> acl, 
+            LockListener callback) {
+        super(zookeeper, dir, acl, callback);
+    }
+
+    @Override
+    String getNodePrefix() {
+        return NODE_PREFIX;
+    }
+
+    /**
+     * a reader waits for the nearest writer queued before it, readers
+     * before that writer don't matter: they'll be done before it gets in
+     */
+    @Override
+    boolean isBlockedBy(String name) {
+        return !name.startsWith(NODE_PREFIX);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.List;
+
+/**
+ * A read/write lock on a single dir: a shared {@link ReadLock} and an
+ * exclusive {@link WriteLock}. Both queue in the same dir, in request order,
+ * so writers aren't starved by a steady flow of readers. A plain
+ * {@link WriteLock} on the same dir behaves as one more writer.
+ * <p/> A session may hold one node of each kind per dir, so use one
+ * ReadWriteLock per client and dir.
+ *
+ */
+public class ReadWriteLock {
+    private final ReadLock readLock;
+    private final WriteLock writeLock;
+
+    /**
+     * zookeeper contructor for readwritelock
+     * @param zookeeper zookeeper client instance
+     * @param dir the parent path you want to use for locking
+     * @param acl the acls that you want to use for all the paths, 
+     * if null world read/write is used.
+     */
+    public ReadWriteLock(ZooKeeper zookeeper, String dir, List<ACL> acl) {
+        this.readLock = new ReadLock(zookeeper, dir, acl);
+        this.writeLock = new WriteLock(zookeeper, dir, acl);
+    }
+
+    /**
+     * return the shared lock
+     * @return the read lock
+     */
+    public ReadLock readLock() {
+        return readLock;
+    }
+
+    /**
+     * return the exclusive lock
+     * @return the write lock
+     */
+    public WriteLock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * return the parent dir for lock
+     * @return the parent dir used for locks.
+     */
+    public String getDir() {
+        return writeLock.getDir();
+    }
+
+    /**
+     * Closes both locks
+     */
+    public void close() {
+        readLock.close();
+        writeLock.close();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+/**
+ * A token bucket bounding the retries of a client: each retry takes a
+ * token, tokens come back at a steady rate up to the bucket capacity.
+ * Share one between the protocols of a client, so a long outage turns
+ * into a bounded trickle of retries instead of a storm.
+ *
+ */
+public class RetryBudget {
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param capacity retries allowed in a burst
+     * @param retriesPerSecond steady retry rate allowed
+     */
+    public RetryBudget(int capacity, double retriesPerSecond) {
+        this.capacity = capacity;
+        this.tokensPerNano = retriesPerSecond / 1e9;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * takes a token if there is one
+     * @return true if the retry may go ahead
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * return the tokens left, as of the last retry
+     * @return the tokens left
+     */
+    public synchronized double getTokens() {
+        return tokens;
+    }
+}
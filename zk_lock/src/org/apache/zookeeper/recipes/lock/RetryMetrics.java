@@ -0,0 +1,112 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the retries done by protocols, to tune a {@link RetryPolicy}
+ * and {@link RetryBudget} under load. Values are live and may be shared by
+ * many protocols.
+ *
+ */
+public class RetryMetrics {
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong delayMillis = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong deadlineGiveUps = new AtomicLong();
+    private final AtomicLong budgetGiveUps = new AtomicLong();
+
+    void attempt() {
+        attempts.incrementAndGet();
+    }
+
+    void retry(long delay) {
+        retries.incrementAndGet();
+        delayMillis.addAndGet(delay);
+    }
+
+    void exhausted() {
+        exhausted.incrementAndGet();
+    }
+
+    void deadlineReached() {
+        deadlineGiveUps.incrementAndGet();
+    }
+
+    void budgetSpent() {
+        budgetGiveUps.incrementAndGet();
+    }
+
+    /**
+     * return how many times operations were run, retries included
+     */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * return how many retries were made
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * return the total time waited before retries, in milliseconds
+     */
+    public long getDelayMillis() {
+        return delayMillis.get();
+    }
+
+    /**
+     * return how many operations failed once the policy gave up
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * return how many operations failed as the next retry would pass their deadline
+     */
+    public long getDeadlineGiveUps() {
+        return deadlineGiveUps.get();
+    }
+
+    /**
+     * return how many operations failed for lack of retry budget
+     */
+    public long getBudgetGiveUps() {
+        return budgetGiveUps.get();
+    }
+
+    /**
+     * return every give up, whatever the reason
+     */
+    public long getGiveUps() {
+        return getExhausted() + getDeadlineGiveUps() + getBudgetGiveUps();
+    }
+
+    @Override
+    public String toString() {
+        return "attempts=" + getAttempts() + " retries=" + getRetries() + " delay=" + getDelayMillis() +
+            "ms giveUps=" + getGiveUps() + " (exhausted=" + getExhausted() + " deadline=" +
+            getDeadlineGiveUps() + " budget=" + getBudgetGiveUps() + ")";
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+/**
+ * Decides how long a protocol waits before retrying an operation which
+ * failed on a connection loss, see {@link LinearRetry} and
+ * {@link ExponentialBackoffRetry}. Deadlines and a {@link RetryBudget} are
+ * checked on top of it. Implementations must be thread safe, one may be
+ * shared by many protocols.
+ *
+ */
+public interface RetryPolicy {
+    /**
+     * Get the delay before the next retry
+     * @param retries retries done so far for this operation, 0 after the
+     * first failure
+     * @param lastDelay the delay before the previous retry in milliseconds,
+     * 0 if there was none
+     * @return the delay in milliseconds, or -1 to give up
+     */
+    long getDelay(int retries, long lastDelay);
+}
@@ -19,16 +19,25 @@ package org.apache.zookeeper.recipes.lock;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.CreateMode;
 import static org.apache.zookeeper.CreateMode.EPHEMERAL_SEQUENTIAL;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A <a href="package.html">protocol to implement an exclusive
@@ -36,20 +45,57 @@ import java.util.TreeSet;
  *  start the process of grabbing the lock; you may get the lock then or it may be 
  *  some time later. <p/> You can register a listener so that you are invoked 
  *  when you get the lock; otherwise you can ask if you have the lock
- *  by calling {@link #isOwner()}
+ *  by calling {@link #isOwner()}. <p/> Callers which would rather block
+ *  use {@link #tryLock(long, TimeUnit)} or {@link #lockInterruptibly()}, their
+ *  wait times are kept in a {@link WaitHistogram}. <p/> {@link #lockAsync()}
+ *  waits without any thread at all.
  *
  */
 public class WriteLock extends ProtocolSupport {
     private static final Logger LOG = Logger.getLogger(WriteLock.class);
+    private static final Random TAGS = new Random();
+    /** most candidate names probed for a lost node before listing dir instead */
+    static final int MAX_PROBES = 32;
+    /** children a probe must save listing, an exists costs about that much */
+    static final int NAMES_PER_PROBE = 100;
 
     private final String dir;
-    private String id;
-    private ZNodeName idName;
+    private volatile String id;
+    /** sequence number of our node, parsed once per node */
+    private int idSequence;
     private String ownerId;
     private String lastChildId;
     private byte[] data = {0x12, 0x34};
     private LockListener callback;
     private LockZooKeeperOperation zop;
+    private ZooKeeperOperation dirop = new DirOperation();
+    /** tells our nodes apart from those of other locks on this session */
+    private final String tag = Long.toString(TAGS.nextLong() & Long.MAX_VALUE, 36);
+    /** cversion of dir before our last create, -1 if unknown */
+    private int createFloor = -1;
+    /** our last create got no answer, the node may or may not exist */
+    private boolean createLost;
+    private LockWatcher watcher = new LockWatcher();
+    /** runs listeners and completes futures for the async path */
+    private Executor executor = ForkJoinPool.commonPool();
+    /** the future of the lockAsync call still queued */
+    private CompletableFuture<LockHandle> pending;
+    private WaitHistogram waitHistogram = new WaitHistogram();
+    private KeeperException watchFailure;
+    /** when tryLock callers must be done retrying, 0 for none */
+    private long retryDeadline;
+
+    // lease mode, see setLease
+    private long leaseMaxHoldNanos;
+    private int leaseMaxHolds;
+    private long leaseStart;
+    private int leaseHolds;
+    private boolean leaseIdle;
+    /** bumped each time the lock is let go, a {@link LockHandle} only releases the hold it got */
+    private long generation;
+    private boolean leaseContended;
+    private long leaseHits;
+    private SuccessorWatcher successorWatcher = new SuccessorWatcher();
     
     /**
      * zookeeper contructor for writelock
@@ -105,8 +151,27 @@ public class WriteLock extends ProtocolSupport {
      * if it cannot connect to zookeeper.
      */
     public synchronized void unlock() throws RuntimeException {
+        if (pending != null) {
+            // nobody wants the lock anymore, a create in flight is undone by its callback
+            final CompletableFuture<LockHandle> abandoned = pending;
+            pending = null;
+            executor.execute(new Runnable() {
+                public void run() {
+                    abandoned.cancel(false);
+                }
+            });
+        }
         
-        if (!isClosed() && id != null) {
+        if (!isClosed() && id != null && !leaseIdle) {
+            generation++;
+            if (keepLease()) {
+                // we keep our node for the next lock() of this client
+                leaseIdle = true;
+                if (callback != null) {
+                    callback.lockReleased();
+                }
+                return;
+            }
             // we don't need to retry this operation in the case of failure
             // as ZK will remove ephemeral files and we don't wanna hang
             // this process when closing if we cannot reconnect to ZK
@@ -137,6 +202,9 @@ public class WriteLock extends ProtocolSupport {
                 }
                 id = null;
             }
+        } else if (leaseIdle) {
+            // the lease was never used again: give the node up for good
+            endLease();
         }
     }
     
@@ -150,11 +218,10 @@ public class WriteLock extends ProtocolSupport {
             // lets either become the leader or watch the new/updated node
             LOG.debug("Watcher fired on path: " + event.getPath() + " state: " + 
                     event.getState() + " type " + event.getType());
-            try {
-		if(id != null)
-		    lock();
-            } catch (Exception e) {
-                LOG.warn("Failed to acquire lock: " + e, e);
+            String node = id;
+            if (node != null) {
+                // async, the event thread must not wait on zookeeper
+                checkAsync(node);
             }
         }
     }
@@ -165,29 +232,30 @@ public class WriteLock extends ProtocolSupport {
      */
     private  class LockZooKeeperOperation implements ZooKeeperOperation {
         
-        /** find if we have been created earler if not create our node
+        /** create our node, unless a create that got no answer made it
          * 
          * @param prefix the prefix node
-         * @param zookeeper teh zookeeper client
-         * @param dir the dir paretn
          * @throws KeeperException
          * @throws InterruptedException
          */
-        private void findPrefixInChildren(String prefix, ZooKeeper zookeeper, String dir) 
+        private void findOrCreate(String prefix) 
             throws KeeperException, InterruptedException {
-            List<String> names = zookeeper.getChildren(dir, false);
-            for (String name : names) {
-                if (name.startsWith(prefix)) {
-                    id = name;
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Found id created last time: " + id);
-                    }
-                    break;
+            if (createLost) {
+                // lets try look up the current ID if we failed 
+                // in the middle of creating the znode
+                id = findLostNode(prefix, createFloor);
+                createLost = false;
+                if (id != null && LOG.isDebugEnabled()) {
+                    LOG.debug("Found id created last time: " + id);
                 }
             }
             if (id == null) {
+                // stays set if the create fails, the server may still have
+                // made our node
+                createLost = true;
                 id = zookeeper.create(dir + "/" + prefix, data, 
                         getAcl(), EPHEMERAL_SEQUENTIAL);
+                createLost = false;
 
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Created id: " + id);
@@ -202,59 +270,115 @@ public class WriteLock extends ProtocolSupport {
          * @return if the command was successful or not
          */
         public boolean execute() throws KeeperException, InterruptedException {
-            do {
+            // loop until we either own the lock or are watching a predecessor;
+            // returning without a watch set would leave us waiting forever
+            while (true) {
                 if (id == null) {
-                    long sessionId = zookeeper.getSessionId();
-                    String prefix = "x-" + sessionId + "-";
-                    // lets try look up the current ID if we failed 
-                    // in the middle of creating the znode
-                    findPrefixInChildren(prefix, zookeeper, dir);
-                    idName = new ZNodeName(id);
+                    findOrCreate(getOwnPrefix());
+                    idSequence = ZNodeName.parseSequence(id);
                 }
                 if (id != null) {
                     List<String> names = zookeeper.getChildren(dir, false);
-                    if (names.isEmpty()) {
-                        LOG.warn("No children in: " + dir + " when we've just " +
-                        "created one! Lets recreate it...");
-                        // lets force the recreation of the id
-                        id = null;
-                    } else {
-                        // lets sort them explicitly (though they do seem to come back in order ususally :)
-                        SortedSet<ZNodeName> sortedNames = new TreeSet<ZNodeName>();
-                        for (String name : names) {
-                            sortedNames.add(new ZNodeName(dir + "/" + name));
-                        }
-                        ownerId = sortedNames.first().getName();
-                        SortedSet<ZNodeName> lessThanMe = sortedNames.headSet(idName);
-                        if (!lessThanMe.isEmpty()) {
-                            ZNodeName lastChildName = lessThanMe.last();
-                            lastChildId = lastChildName.getName();
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug("watching less than me node: " + lastChildId);
-                            }
-                            Stat stat = zookeeper.exists(lastChildId, new LockWatcher());
-                            if (stat != null) {
-                                return Boolean.FALSE;
-                            } else {
-                                LOG.warn("Could not find the" +
-                                		" stats for less than me: " + lastChildName.getName());
-                            }
+                    Standing standing = examine(names);
+                    if (standing == Standing.WAITING) {
+                        Stat stat = zookeeper.exists(lastChildId, watcher);
+                        if (stat != null) {
+                            return Boolean.FALSE;
                         } else {
-                            if (isOwner()) {
-                                if (callback != null) {
-                                    callback.lockAcquired();
-                                }
-                                return Boolean.TRUE;
-                            }
+                            // it went away meanwhile, lets look at the children again
+                            LOG.warn("Could not find the" +
+                            		" stats for less than me: " + lastChildId);
+                        }
+                    } else if (standing == Standing.OWNER) {
+                        if (isLeasing()) {
+                            startLease(names);
+                        }
+                        // wake up tryLock/lockInterruptibly callers
+                        WriteLock.this.notifyAll();
+                        if (callback != null) {
+                            callback.lockAcquired();
                         }
+                        completePending(null);
+                        return Boolean.TRUE;
+                    } else {
+                        LOG.warn("Our node " + id + " is no longer in: " + dir +
+                                 " Lets recreate it...");
+                        id = null;
                     }
                 }
             }
-            while (id == null);
-            return Boolean.FALSE;
         }
     };
 
+    /** where our node stands in the queue */
+    private enum Standing { OWNER, WAITING, GONE }
+
+    /**
+     * one pass over the dir children, no sorting: the lowest node owns the
+     * lock and we wait for the highest blocking node below ours, which is
+     * left in lastChildId
+     * @param names the dir children
+     * @return where our node stands
+     */
+    private Standing examine(List<String> names) {
+        String firstChild = null;
+        int firstSequence = Integer.MAX_VALUE;
+        String lastChildName = null;
+        int lastSequence = -1;
+        boolean found = false;
+        for (String name : names) {
+            int sequence = ZNodeName.parseSequence(name);
+            if (sequence < 0) {
+                continue;
+            }
+            if (sequence < firstSequence) {
+                firstSequence = sequence;
+                firstChild = name;
+            }
+            if (sequence == idSequence) {
+                found = true;
+            } else if (sequence < idSequence && sequence > lastSequence
+                    && isBlockedBy(name)) {
+                lastSequence = sequence;
+                lastChildName = name;
+            }
+        }
+        ownerId = firstChild == null ? null : dir + "/" + firstChild;
+        if (lastChildName != null) {
+            lastChildId = dir + "/" + lastChildName;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("watching less than me node: " + lastChildId);
+            }
+            return Standing.WAITING;
+        }
+        if (found) {
+            // nothing blocks us, we may not be first though (shared holders)
+            ownerId = id;
+            return Standing.OWNER;
+        }
+        return Standing.GONE;
+    }
+
+    /**
+     * the prefix of our lock node names, which get the session id
+     * and the sequence number appended
+     * @return the node prefix
+     */
+    String getNodePrefix() {
+        return "x-";
+    }
+
+    /**
+     * tells if a node queued before ours keeps us from the lock. an
+     * exclusive lock is blocked by any node, whatever kind of lock it holds,
+     * so it waits for its immediate predecessor.
+     * @param name the child name of a lock node queued before ours
+     * @return true if we have to wait for it
+     */
+    boolean isBlockedBy(String name) {
+        return true;
+    }
+
     /**
      * Attempts to acquire the exclusive write lock returning whether or not it was
      * acquired. Note that the exclusive lock may be acquired some time later after
@@ -264,9 +388,742 @@ public class WriteLock extends ProtocolSupport {
         if (isClosed()) {
             return false;
         }
-        ensurePathExists(dir);
+        if (takeLease()) {
+            if (callback != null) {
+                callback.lockAcquired();
+            }
+            return true;
+        }
+        retryOperation(dirop, retryDeadline);
+
+        return (Boolean) retryOperation(zop, retryDeadline);
+    }
+
+    /**
+     * Turns lease mode on. When this client unlocks it keeps its node, so
+     * its next {@link #lock()} takes no round trip, until the lock was taken
+     * maxHolds times or maxHoldTime has passed since the node got the lock.
+     * As soon as another client queues behind us (a conflicting node, for a
+     * {@link ReadLock}) the node is given up: right away if we don't hold the
+     * lock, on unlock otherwise. While the lease lasts our node stays first,
+     * so other clients wait up to the lease limits for a lock nobody holds
+     * until they queue; they never wait for a lease after queueing.
+     * <p/> Call {@link #unlock()} while not holding the lock to give the node
+     * up early. Leasing costs one children watch on the dir per lease.
+     * @param maxHoldTime the longest time a node is kept, 0 to turn leases off
+     * @param unit the unit of maxHoldTime
+     * @param maxHolds how many times a node is used at most
+     */
+    public synchronized void setLease(long maxHoldTime, TimeUnit unit, int maxHolds) {
+        this.leaseMaxHoldNanos = unit.toNanos(maxHoldTime);
+        this.leaseMaxHolds = maxHolds;
+    }
+
+    /**
+     * return how many acquisitions reused a leased node
+     * @return the lease hit count
+     */
+    public synchronized long getLeaseHits() {
+        return leaseHits;
+    }
+
+    /**
+     * takes the lock with our idle node if its lease still holds, no round
+     * trip then; gives the node up otherwise
+     * @return true if the lease gave us the lock
+     */
+    private boolean takeLease() {
+        if (!leaseIdle) {
+            return false;
+        }
+        if (!leaseValid()) {
+            endLease();
+            return false;
+        }
+        // still ours and nobody waits for it
+        leaseIdle = false;
+        leaseHolds++;
+        leaseHits++;
+        return true;
+    }
+
+    private boolean isLeasing() {
+        return leaseMaxHoldNanos > 0 && leaseMaxHolds > 0;
+    }
+
+    /**
+     * our node got the lock: count its holds and watch for clients queueing
+     * behind us. the watch is set async, whoever queued meanwhile ends the
+     * lease when the answer comes
+     */
+    private void startLease(List<String> names) {
+        leaseStart = System.nanoTime();
+        leaseHolds = 1;
+        leaseIdle = false;
+        leaseContended = hasSuccessor(names);
+        if (!leaseContended) {
+            zookeeper.getChildren(dir, successorWatcher, successorWatcher, null);
+        }
+    }
+
+    private boolean leaseValid() {
+        return isLeasing() && !leaseContended && leaseHolds < leaseMaxHolds &&
+            System.nanoTime() - leaseStart < leaseMaxHoldNanos;
+    }
+
+    /**
+     * keep our node on unlock?
+     */
+    private boolean keepLease() {
+        return isOwner() && leaseValid();
+    }
+
+    /**
+     * gives up a node we keep but don't use
+     */
+    private void endLease() {
+        leaseIdle = false;
+        cancel();
+    }
+
+    private boolean hasSuccessor(List<String> names) {
+        for (String name : names) {
+            if (ZNodeName.parseSequence(name) > idSequence && isBlockedBy(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the watcher on the dir children while we own the lock in lease
+     * mode, it ends the lease once someone queues behind us. it reads the
+     * children again async, setting itself once more
+     */
+    private class SuccessorWatcher implements Watcher, ChildrenCallback {
+        public void process(WatchedEvent event) {
+            if (event.getType() != Event.EventType.NodeChildrenChanged) {
+                return;
+            }
+            synchronized (WriteLock.this) {
+                if (!leaseWatched()) {
+                    return;
+                }
+            }
+            zookeeper.getChildren(dir, this, this, null);
+        }
+
+        public void processResult(int rc, String path, Object ctx, List<String> names) {
+            synchronized (WriteLock.this) {
+                if (!leaseWatched()) {
+                    return;
+                }
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    LOG.warn("Could not look for clients behind us: " + KeeperException.Code.get(rc));
+                    // play safe, no more reuse for this node
+                    leaseContended = true;
+                    return;
+                }
+                if (!hasSuccessor(names)) {
+                    return;
+                }
+                leaseContended = true;
+                if (leaseIdle) {
+                    endLease();
+                }
+            }
+        }
+
+        private boolean leaseWatched() {
+            return id != null && (isOwner() || leaseIdle) && !leaseContended;
+        }
+    }
+
+    /**
+     * Waits until the exclusive write lock is acquired or the timeout
+     * elapses. On timeout our node is removed from the queue, so we won't
+     * get the lock later on.
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if the lock was acquired, false on timeout or if the
+     * lock is closed
+     * @throws InterruptedException if interrupted while waiting, our
+     * node is removed from the queue then
+     */
+    public boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        return awaitLock(start, start + unit.toNanos(timeout), true);
+    }
+
+    /**
+     * Waits until the exclusive write lock is acquired.
+     * @throws InterruptedException if interrupted while waiting, our
+     * node is removed from the queue then
+     * @throws IllegalStateException if the lock is closed
+     */
+    public void lockInterruptibly() throws KeeperException, InterruptedException {
+        if (!awaitLock(System.nanoTime(), 0, false)) {
+            throw new IllegalStateException("Lock on " + dir + " is closed");
+        }
+    }
+
+    /**
+     * Queues for the exclusive write lock without blocking a thread: every
+     * zookeeper call on the way is async and the watch on our predecessor
+     * moves us on, so a waiter takes no thread at all. The listener and the
+     * future run on the {@link #setExecutor executor}. A request lost to a
+     * connection loss is retried by {@link #lock()} on that executor.
+     * {@link #unlock()} cancels the future and leaves the queue.
+     * @return a future completed with the lock handle once we own the lock,
+     * or exceptionally if zookeeper fails us or the lock is closed. A call
+     * while queued returns the same future
+     */
+    public synchronized CompletableFuture<LockHandle> lockAsync() {
+        if (pending != null) {
+            return pending;
+        }
+        CompletableFuture<LockHandle> future = new CompletableFuture<LockHandle>();
+        if (isClosed()) {
+            future.completeExceptionally(new IllegalStateException("Lock on " + dir + " is closed"));
+            return future;
+        }
+        pending = future;
+        if (takeLease()) {
+            completePending(callback);
+        } else if (isOwner()) {
+            // already ours, the listener was told then
+            completePending(null);
+        } else if (id != null) {
+            checkAsync(id);
+        } else {
+            queueAsync();
+        }
+        return future;
+    }
+
+    /**
+     * releases a lock taken by {@link #lockAsync()} without blocking
+     * @param node our node when the lock was taken
+     * @param handleGeneration the generation when the lock was taken
+     * @return a future completed once our node is gone (or kept as a lease)
+     */
+    synchronized CompletableFuture<Void> unlockAsync(String node, long handleGeneration) {
+        final CompletableFuture<Void> released = new CompletableFuture<Void>();
+        if (isClosed() || !node.equals(id) || leaseIdle || handleGeneration != generation) {
+            // already released, maybe taken again since on the same (leased) node
+            released.complete(null);
+            return released;
+        }
+        generation++;
+        final LockListener listener = callback;
+        if (keepLease()) {
+            leaseIdle = true;
+            dispatchReleased(listener, released, null);
+            return released;
+        }
+        id = null;
+        zookeeper.delete(node, -1, new VoidCallback() {
+            public void processResult(int rc, String path, Object ctx) {
+                KeeperException e = null;
+                if (rc != KeeperException.Code.OK.intValue() &&
+                    rc != KeeperException.Code.NONODE.intValue()) {
+                    // the ephemeral node goes at the session end anyway
+                    e = KeeperException.create(KeeperException.Code.get(rc), path);
+                }
+                dispatchReleased(listener, released, e);
+            }
+        }, null);
+        return released;
+    }
+
+    /**
+     * makes sure dir exists, then creates our node, all async
+     */
+    private void queueAsync() {
+        zookeeper.exists(dir, false, new StatCallback() {
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    createAsync(stat.getCversion());
+                } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                    zookeeper.create(dir, null, getAcl(), CreateMode.PERSISTENT, new StringCallback() {
+                        public void processResult(int rc, String path, Object ctx, String name) {
+                            if (rc == KeeperException.Code.OK.intValue()) {
+                                createAsync(0);
+                            } else if (rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                                // made by someone else meanwhile, its cversion is unknown
+                                createAsync(-1);
+                            } else {
+                                failedAsync(rc, path);
+                            }
+                        }
+                    }, null);
+                } else {
+                    failedAsync(rc, path);
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * creates our node async, as {@link LockZooKeeperOperation#findOrCreate}
+     * does it leaves createLost set until the answer comes
+     * @param floor cversion of dir before the create, -1 if unknown
+     */
+    private synchronized void createAsync(int floor) {
+        if (pending == null || isClosed()) {
+            return;
+        }
+        if (!createLost) {
+            createFloor = floor;
+        }
+        createLost = true;
+        createNodeAsync(new StringCallback() {
+            public void processResult(int rc, String path, Object ctx, String name) {
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    failedAsync(rc, path);
+                    return;
+                }
+                synchronized (WriteLock.this) {
+                    createLost = false;
+                    if (pending == null || id != null) {
+                        // unlocked meanwhile (or queued by lock()), this node is of no use
+                        zookeeper.delete(name, -1, new VoidCallback() {
+                            public void processResult(int rc, String path, Object ctx) {
+                            }
+                        }, null);
+                        return;
+                    }
+                    adoptNode(name);
+                }
+                checkAsync(name);
+            }
+        }, null);
+    }
+
+    /**
+     * looks at the queue again without blocking: the children, then a watch
+     * on the node to wait for, both async
+     * @param node our node at the time, the answer is dropped if it changed
+     */
+    private void checkAsync(final String node) {
+        zookeeper.getChildren(dir, false, new ChildrenCallback() {
+            public void processResult(int rc, String path, Object ctx, List<String> names) {
+                checked(node, rc, names);
+            }
+        }, null);
+    }
+
+    private synchronized void checked(final String node, int rc, List<String> names) {
+        if (isClosed() || !node.equals(id) || isOwner()) {
+            // unlocked, cancelled or already acquired meanwhile
+            return;
+        }
+        if (rc != KeeperException.Code.OK.intValue()) {
+            failedAsync(rc, dir);
+            return;
+        }
+        Standing standing = examine(names);
+        if (standing == Standing.OWNER) {
+            if (isLeasing()) {
+                startLease(names);
+            }
+            notifyAll();
+            completePending(callback);
+        } else if (standing == Standing.WAITING) {
+            zookeeper.exists(lastChildId, watcher, new StatCallback() {
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    if (rc == KeeperException.Code.NONODE.intValue()) {
+                        // it went away meanwhile, lets look at the children again
+                        checkAsync(node);
+                    } else if (rc != KeeperException.Code.OK.intValue()) {
+                        failedAsync(rc, path);
+                    }
+                    // else our watcher takes it from here
+                }
+            }, null);
+        } else {
+            LOG.warn("Our node " + node + " is no longer in: " + dir +
+                     " Lets recreate it...");
+            id = null;
+            lockOffThread();
+        }
+    }
+
+    /**
+     * an async request failed: a connection loss goes to the retries of
+     * {@link #lock()}, anything else fails the waiters
+     */
+    private synchronized void failedAsync(int rc, String path) {
+        if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+            lockOffThread();
+        } else {
+            createLost = false;
+            failed(KeeperException.create(KeeperException.Code.get(rc), path));
+        }
+    }
+
+    /**
+     * runs {@link #lock()} on the executor, where it may block
+     */
+    private void lockOffThread() {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    lock();
+                } catch (KeeperException e) {
+                    failed(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * nobody watches for us anymore, tell the blocked callers and the
+     * async one, which leaves the queue
+     */
+    private synchronized void failed(KeeperException e) {
+        LOG.warn("Failed to acquire lock: " + e, e);
+        watchFailure = e;
+        notifyAll();
+        if (pending != null) {
+            final CompletableFuture<LockHandle> future = pending;
+            final KeeperException failure = e;
+            pending = null;
+            cancel();
+            executor.execute(new Runnable() {
+                public void run() {
+                    future.completeExceptionally(failure);
+                }
+            });
+        }
+    }
+
+    /**
+     * we own the lock: completes the lockAsync future on the executor,
+     * after telling the listener
+     * @param listener the listener to tell, null if it was told already
+     */
+    private void completePending(final LockListener listener) {
+        final CompletableFuture<LockHandle> future = pending;
+        final LockHandle handle = future == null ? null : new LockHandle(this, id, generation);
+        pending = null;
+        if (future == null && listener == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                if (listener != null) {
+                    listener.lockAcquired();
+                }
+                if (future != null) {
+                    future.complete(handle);
+                }
+            }
+        });
+    }
+
+    private void dispatchReleased(final LockListener listener, final CompletableFuture<Void> released,
+                                  final KeeperException failure) {
+        executor.execute(new Runnable() {
+            public void run() {
+                if (listener != null) {
+                    listener.lockReleased();
+                }
+                if (failure != null) {
+                    released.completeExceptionally(failure);
+                } else {
+                    released.complete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * return the executor running the listener and completing the futures
+     * of {@link #lockAsync()}; it also tells the listener about locks our
+     * watch got us, so the zk event thread never runs it
+     * @return the executor, the common fork join pool by default
+     */
+    public synchronized Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * set the executor running the listener and completing the futures
+     * @param executor the executor to use
+     */
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * queues for the lock and parks until our watch makes us the owner
+     */
+    private synchronized boolean awaitLock(long start, long deadline, boolean timed)
+        throws KeeperException, InterruptedException {
+        watchFailure = null;
+        try {
+            retryDeadline = timed ? deadline : 0;
+            try {
+                lock();
+            } finally {
+                retryDeadline = 0;
+            }
+            while (!isOwner()) {
+                if (isClosed()) {
+                    return false;
+                }
+                if (watchFailure != null) {
+                    KeeperException e = watchFailure;
+                    cancel();
+                    throw e;
+                }
+                if (timed) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        cancel();
+                        waitHistogram.recordTimeout();
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+        waitHistogram.record(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * leaves the queue (or gives up the lock) without waiting for
+     * zookeeper. the delete is async so it works on an interrupted thread,
+     * a failure leaves the ephemeral node to the session end.
+     */
+    synchronized void cancel() {
+        if (id != null) {
+            generation++;
+            zookeeper.delete(id, -1, new VoidCallback() {
+                public void processResult(int rc, String path, Object ctx) {
+                    if (rc != KeeperException.Code.OK.intValue() &&
+                        rc != KeeperException.Code.NONODE.intValue()) {
+                        LOG.warn("Could not remove queued node " + path + ": " +
+                                 KeeperException.Code.get(rc));
+                    }
+                }
+            }, null);
+            id = null;
+        }
+    }
 
-        return (Boolean) retryOperation(zop);
+    /**
+     * queues our node without waiting for it, for {@link MultiLock} to
+     * queue on many dirs at once. the parent dir must exist.
+     * @param cb told the created path, which goes to {@link #adoptNode}
+     * @param ctx passed to cb
+     */
+    void createNodeAsync(StringCallback cb, Object ctx) {
+        zookeeper.create(dir + "/" + getOwnPrefix(), data, getAcl(), EPHEMERAL_SEQUENTIAL, cb, ctx);
+    }
+
+    /**
+     * tells if a hold taken through a {@link LockHandle} is still on
+     * @param node our node when the lock was taken
+     * @param handleGeneration the generation when the lock was taken
+     * @return false once that hold was let go, even if the lock was taken again
+     */
+    synchronized boolean holds(String node, long handleGeneration) {
+        return handleGeneration == generation && !leaseIdle && node.equals(id) && isOwner();
+    }
+
+    /**
+     * notes that a create sent by {@link #createNodeAsync} got no answer,
+     * so the next queueing looks for the node it may have made first
+     */
+    synchronized void markCreateLost() {
+        if (!createLost) {
+            // the cversion before that create wasn't read, the look up lists dir
+            createLost = true;
+            createFloor = -1;
+        }
+    }
+
+    /**
+     * return true if a create got no answer and its node wasn't looked for yet
+     */
+    synchronized boolean isCreateLost() {
+        return createLost;
+    }
+
+    /**
+     * queues our node the blocking way, for when {@link #createNodeAsync}
+     * failed or got no answer: makes dir if it's missing, keeps the node a
+     * lost create made instead of queueing a second one, and retries through
+     * connection losses
+     * @param deadline the System.nanoTime() by which we must be done
+     * retrying, 0 for none
+     * @return the path of our node
+     */
+    synchronized String queueNode(long deadline) throws KeeperException, InterruptedException {
+        retryOperation(dirop, deadline);
+        retryOperation(new ZooKeeperOperation() {
+            public boolean execute() throws KeeperException, InterruptedException {
+                zop.findOrCreate(getOwnPrefix());
+                return true;
+            }
+        }, deadline);
+        adoptNode(id);
+        return id;
+    }
+
+    /**
+     * return the name our nodes start with, unique to this lock instance
+     * @return the node prefix, to which zookeeper appends the sequence
+     */
+    String getOwnPrefix() {
+        return getNodePrefix() + zookeeper.getSessionId() + "-" + tag + "-";
+    }
+
+    /**
+     * looks for the node a lost create may have made. A sequential node is
+     * named after the cversion of dir when it was made, so only the names
+     * between the cversion read before the create and the current one can
+     * be ours; those are probed lowest first instead of listing dir. Small
+     * dirs and wide ranges are still listed, that is cheaper there.
+     * <p/> The probes are synchronous, one round trip each: we run inside
+     * lock() holding our monitor, which callbacks on the event thread take
+     * too, so waiting there for async replies could wait forever
+     * @param prefix our node prefix
+     * @param floor cversion of dir before the create, -1 if unknown
+     * @return the path of our node or null if the create never happened
+     */
+    String findLostNode(String prefix, int floor) throws KeeperException, InterruptedException {
+        Stat stat = zookeeper.exists(dir, false);
+        if (stat == null) {
+            return null;
+        }
+        int ceiling = stat.getCversion();
+        if (floor < 0 || ceiling < floor || ceiling - floor > MAX_PROBES
+            || (long) (ceiling - floor) * NAMES_PER_PROBE > stat.getNumChildren()) {
+            return findNodeByScan(prefix);
+        }
+        for (int sequence = floor; sequence < ceiling; sequence++) {
+            String path = dir + "/" + prefix + String.format(Locale.ENGLISH, "%010d", sequence);
+            if (zookeeper.exists(path, false) != null) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * lists dir looking for a node with our prefix
+     * @param prefix our node prefix
+     * @return the path of our node or null
+     */
+    String findNodeByScan(String prefix) throws KeeperException, InterruptedException {
+        List<String> names = zookeeper.getChildren(dir, false);
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                return dir + "/" + name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * makes sure dir exists and notes its cversion, the least sequence
+     * our next node can get
+     */
+    private class DirOperation implements ZooKeeperOperation {
+        public boolean execute() throws KeeperException, InterruptedException {
+            Stat stat = zookeeper.exists(dir, false);
+            int cversion = stat == null ? -1 : stat.getCversion();
+            if (stat == null) {
+                try {
+                    zookeeper.create(dir, null, getAcl(), CreateMode.PERSISTENT);
+                    cversion = 0;
+                } catch (KeeperException.NodeExistsException e) {
+                    // made by someone else meanwhile, its cversion is unknown
+                }
+            }
+            if (!createLost) {
+                // else keep the floor the lost node is searched from
+                createFloor = cversion;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * takes a node created by {@link #createNodeAsync} as ours
+     * @param path the created node path
+     */
+    synchronized void adoptNode(String path) {
+        id = path;
+        idSequence = ZNodeName.parseSequence(path);
+    }
+
+    /**
+     * tells if our node owns the lock, from children read elsewhere
+     * @param names the dir children
+     * @return true if we own the lock, then {@link #isOwner()} says so too
+     */
+    synchronized boolean ownsAmong(List<String> names) {
+        boolean found = false;
+        for (String name : names) {
+            int sequence = ZNodeName.parseSequence(name);
+            if (sequence == idSequence) {
+                found = true;
+            } else if (sequence >= 0 && sequence < idSequence && isBlockedBy(name)) {
+                return false;
+            }
+        }
+        if (found) {
+            ownerId = id;
+        }
+        return found;
+    }
+
+    @Override
+    protected void doClose() {
+        // wake up the blocked callers
+        synchronized (this) {
+            notifyAll();
+            if (pending != null) {
+                final CompletableFuture<LockHandle> future = pending;
+                pending = null;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        future.completeExceptionally(new IllegalStateException("Lock on " + dir + " is closed"));
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * return the wait times of {@link #tryLock(long, TimeUnit)} and
+     * {@link #lockInterruptibly()}; {@link #lock()} doesn't wait so
+     * it isn't recorded
+     * @return the wait histogram
+     */
+    public WaitHistogram getWaitHistogram() {
+        return waitHistogram;
+    }
+
+    /**
+     * record the wait times in a different histogram, e.g. one shared
+     * by several locks
+     * @param waitHistogram the histogram to use
+     */
+    public void setWaitHistogram(WaitHistogram waitHistogram) {
+        this.waitHistogram = waitHistogram;
     }
 
     /**
@@ -282,7 +1139,7 @@ public class WriteLock extends ProtocolSupport {
      *  lock (or the leader)
      */
     public boolean isOwner() {
-        return id != null && ownerId != null && id.equals(ownerId);
+        return id != null && ownerId != null && id.equals(ownerId) && !leaseIdle;
     }
 
     /**
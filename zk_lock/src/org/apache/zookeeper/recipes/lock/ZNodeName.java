@@ -51,6 +51,32 @@ class ZNodeName implements Comparable<ZNodeName> {
         }
     }
 
+    /**
+     * Parses the sequence number after the last '-' of a znode name
+     * without allocating, for scanning large children lists
+     * @param name the znode name or path
+     * @return the sequence number or -1 if there is none
+     */
+    static int parseSequence(String name) {
+        int idx = name.lastIndexOf('-');
+        int length = name.length();
+        if (idx < 0 || idx == length - 1) {
+            return -1;
+        }
+        long sequence = 0;
+        for (int i = idx + 1; i < length; i++) {
+            int digit = name.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            sequence = sequence * 10 + digit;
+            if (sequence > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) sequence;
+    }
+
     @Override
     public String toString() {
         return name.toString();
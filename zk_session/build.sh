@@ -0,0 +1,2 @@
+javac -d bin -cp "lib/*" -g src/org/apache/zookeeper/recipes/session/*
+jar cf zk_session.jar -C bin/ .
@@ -0,0 +1,71 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps path prefixes to the {@link SessionHandle} owning them. A path
+ * belongs to the handle with the longest prefix ending on a '/' boundary,
+ * so a handle on /locks/a gets /locks/a/x-1 but not /locks/ab.
+ *
+ */
+class DispatchTable {
+    private final ConcurrentHashMap<String, SessionHandle> routes =
+        new ConcurrentHashMap<String, SessionHandle>();
+
+    /**
+     * adds a route
+     * @param handle the handle, keyed on its path prefix
+     * @return false if another handle has this prefix already
+     */
+    boolean add(SessionHandle handle) {
+        return routes.putIfAbsent(handle.getPathPrefix(), handle) == null;
+    }
+
+    /**
+     * removes the route of a handle
+     * @param handle the handle to remove
+     */
+    void remove(SessionHandle handle) {
+        routes.remove(handle.getPathPrefix(), handle);
+    }
+
+    /**
+     * finds the handle owning a path, one hash lookup per path level
+     * @param path an absolute znode path
+     * @return the handle or null if none has a prefix of path
+     */
+    SessionHandle lookup(String path) {
+        if (path == null || routes.isEmpty()) {
+            return null;
+        }
+        String prefix = path;
+        while (true) {
+            SessionHandle handle = routes.get(prefix);
+            if (handle != null) {
+                return handle;
+            }
+            int idx = prefix.lastIndexOf('/');
+            if (idx < 0 || prefix.length() == 1) {
+                return null;
+            }
+            prefix = idx == 0 ? "/" : prefix.substring(0, idx);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.session;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.zookeeper.AsyncCallback.ACLCallback;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * One session of a {@link SessionPool}, shared by all the handles placed on
+ * it. Every request is accounted to the handle owning its path. The read
+ * methods taking a boolean watch flag delegate to their Watcher
+ * counterparts, so only those are overridden.
+ *
+ */
+class PooledZooKeeper extends ZooKeeper {
+    private final SessionDispatcher dispatcher;
+
+    PooledZooKeeper(String connectString, int sessionTimeout, SessionDispatcher dispatcher)
+        throws IOException {
+        super(connectString, sessionTimeout, dispatcher);
+        this.dispatcher = dispatcher;
+    }
+
+    SessionDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    @Override
+    public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode)
+        throws KeeperException, InterruptedException {
+        dispatcher.write(path);
+        return super.create(path, data, acl, createMode);
+    }
+
+    @Override
+    public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode,
+            StringCallback cb, Object ctx) {
+        dispatcher.write(path);
+        super.create(path, data, acl, createMode, cb, ctx);
+    }
+
+    @Override
+    public void delete(String path, int version) throws InterruptedException, KeeperException {
+        dispatcher.write(path);
+        super.delete(path, version);
+    }
+
+    @Override
+    public void delete(String path, int version, VoidCallback cb, Object ctx) {
+        dispatcher.write(path);
+        super.delete(path, version, cb, ctx);
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        dispatcher.write(path);
+        return super.setData(path, data, version);
+    }
+
+    @Override
+    public void setData(String path, byte[] data, int version, StatCallback cb, Object ctx) {
+        dispatcher.write(path);
+        super.setData(path, data, version, cb, ctx);
+    }
+
+    @Override
+    public Stat setACL(String path, List<ACL> acl, int version) throws KeeperException, InterruptedException {
+        dispatcher.write(path);
+        return super.setACL(path, acl, version);
+    }
+
+    @Override
+    public void setACL(String path, List<ACL> acl, int version, StatCallback cb, Object ctx) {
+        dispatcher.write(path);
+        super.setACL(path, acl, version, cb, ctx);
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        return super.exists(path, dispatcher.read(path, watcher));
+    }
+
+    @Override
+    public void exists(String path, Watcher watcher, StatCallback cb, Object ctx) {
+        super.exists(path, dispatcher.read(path, watcher), cb, ctx);
+    }
+
+    @Override
+    public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        return super.getData(path, dispatcher.read(path, watcher), stat);
+    }
+
+    @Override
+    public void getData(String path, Watcher watcher, DataCallback cb, Object ctx) {
+        super.getData(path, dispatcher.read(path, watcher), cb, ctx);
+    }
+
+    @Override
+    public List<ACL> getACL(String path, Stat stat) throws KeeperException, InterruptedException {
+        dispatcher.read(path, null);
+        return super.getACL(path, stat);
+    }
+
+    @Override
+    public void getACL(String path, Stat stat, ACLCallback cb, Object ctx) {
+        dispatcher.read(path, null);
+        super.getACL(path, stat, cb, ctx);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        return super.getChildren(path, dispatcher.read(path, watcher));
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, ChildrenCallback cb, Object ctx) {
+        super.getChildren(path, dispatcher.read(path, watcher), cb, ctx);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher, Stat stat)
+        throws KeeperException, InterruptedException {
+        return super.getChildren(path, dispatcher.read(path, watcher), stat);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, Children2Callback cb, Object ctx) {
+        super.getChildren(path, dispatcher.read(path, watcher), cb, ctx);
+    }
+}
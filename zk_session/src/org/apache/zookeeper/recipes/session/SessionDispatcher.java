@@ -0,0 +1,147 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.session;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+
+/**
+ * The default watcher of one pooled session. Session state changes go to
+ * every handle on the session, other events and requests to the handle
+ * owning their path in the {@link DispatchTable}.
+ *
+ */
+class SessionDispatcher implements Watcher {
+    private static final Logger LOG = Logger.getLogger(SessionDispatcher.class);
+
+    private final DispatchTable table;
+    private final List<SessionHandle> handles = new CopyOnWriteArrayList<SessionHandle>();
+    private final AtomicLong unrouted;
+    private final CountDownLatch connected = new CountDownLatch(1);
+
+    /**
+     * @param table the routes shared by the pool
+     * @param unrouted counts requests and events no handle owns
+     */
+    SessionDispatcher(DispatchTable table, AtomicLong unrouted) {
+        this.table = table;
+        this.unrouted = unrouted;
+    }
+
+    public void process(WatchedEvent event) {
+        if (event.getType() == EventType.None) {
+            if (event.getState() == KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+            for (SessionHandle handle : handles) {
+                handle.deliver(event);
+            }
+            return;
+        }
+        SessionHandle handle = table.lookup(event.getPath());
+        if (handle != null) {
+            handle.deliver(event);
+        } else {
+            unrouted.incrementAndGet();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("No handle for event: " + event);
+            }
+        }
+    }
+
+    /**
+     * accounts a read to the handle owning path
+     * @param path the path read
+     * @param watcher the watcher left behind, or null
+     * @return the watcher to register instead, which accounts its event
+     */
+    Watcher read(String path, Watcher watcher) {
+        SessionHandle handle = table.lookup(path);
+        if (handle != null) {
+            handle.read(watcher != null);
+        } else {
+            unrouted.incrementAndGet();
+        }
+        if (watcher == null || watcher == this) {
+            return watcher;
+        }
+        return new RoutedWatcher(watcher);
+    }
+
+    /**
+     * accounts a write to the handle owning path
+     * @param path the path written
+     */
+    void write(String path) {
+        SessionHandle handle = table.lookup(path);
+        if (handle != null) {
+            handle.write();
+        } else {
+            unrouted.incrementAndGet();
+        }
+    }
+
+    List<SessionHandle> getHandles() {
+        return handles;
+    }
+
+    CountDownLatch getConnected() {
+        return connected;
+    }
+
+    /**
+     * Wraps a watcher a recipe passed in, accounting the event to the
+     * handle owning its path. Equal to any wrapper of the same watcher,
+     * so zookeeper still registers it once per path.
+     */
+    private class RoutedWatcher implements Watcher {
+        private final Watcher watcher;
+
+        RoutedWatcher(Watcher watcher) {
+            this.watcher = watcher;
+        }
+
+        public void process(WatchedEvent event) {
+            if (event.getType() != EventType.None) {
+                SessionHandle handle = table.lookup(event.getPath());
+                if (handle != null) {
+                    handle.fired();
+                }
+            }
+            watcher.process(event);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RoutedWatcher && ((RoutedWatcher) o).watcher == watcher;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(watcher);
+        }
+    }
+}
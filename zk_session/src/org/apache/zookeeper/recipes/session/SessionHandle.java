@@ -0,0 +1,177 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.session;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * A logical client handed out by a {@link SessionPool}: the pooled session
+ * to give a recipe (a WriteLock dir, a TransactionGroup path) and the
+ * requests that recipe made under its path prefix. Events the session's
+ * default watcher gets under the prefix go to the handle's watcher, as do
+ * the session state changes.
+ *
+ */
+public class SessionHandle {
+    private static final Logger LOG = Logger.getLogger(SessionHandle.class);
+
+    private final SessionPool pool;
+    private final PooledZooKeeper zookeeper;
+    private final String pathPrefix;
+    private final Watcher watcher;
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong watches = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+
+    SessionHandle(SessionPool pool, PooledZooKeeper zookeeper, String pathPrefix, Watcher watcher) {
+        this.pool = pool;
+        this.zookeeper = zookeeper;
+        this.pathPrefix = pathPrefix;
+        this.watcher = watcher;
+    }
+
+    /**
+     * return the shared session to build the recipe on
+     * @return the zookeeper client, shared with other handles
+     */
+    public ZooKeeper getZooKeeper() {
+        return zookeeper;
+    }
+
+    /**
+     * return the path prefix this handle owns
+     * @return the path prefix
+     */
+    public String getPathPrefix() {
+        return pathPrefix;
+    }
+
+    /**
+     * return the watcher of this handle
+     * @return the watcher or null
+     */
+    public Watcher getWatcher() {
+        return watcher;
+    }
+
+    /**
+     * return the number of exists/getData/getChildren/getACL requests
+     * @return the reads under the prefix
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * return the number of create/delete/setData/setACL requests
+     * @return the writes under the prefix
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * return the number of reads which left a watch behind
+     * @return the watches set under the prefix
+     */
+    public long getWatches() {
+        return watches.get();
+    }
+
+    /**
+     * return the number of watch events under the prefix, delivered to the
+     * recipe's watchers or to the handle's watcher
+     * @return the events
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * return the number of requests, each one round trip
+     * @return reads plus writes
+     */
+    public long getRequests() {
+        return getReads() + getWrites();
+    }
+
+    /**
+     * zeroes the counters
+     */
+    public void reset() {
+        reads.set(0);
+        writes.set(0);
+        watches.set(0);
+        events.set(0);
+    }
+
+    /**
+     * gives the prefix back to the pool. The session stays open for the
+     * other handles, so nodes made through this one are not removed.
+     */
+    public void close() {
+        pool.release(this);
+    }
+
+    void read(boolean watch) {
+        reads.incrementAndGet();
+        if (watch) {
+            watches.incrementAndGet();
+        }
+    }
+
+    void write() {
+        writes.incrementAndGet();
+    }
+
+    void fired() {
+        events.incrementAndGet();
+    }
+
+    void deliver(WatchedEvent event) {
+        if (event.getPath() != null) {
+            events.incrementAndGet();
+        }
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watcher.process(event);
+        } catch (RuntimeException e) {
+            // other handles on the session still get their events
+            LOG.warn("Caught: " + e, e);
+        }
+    }
+
+    PooledZooKeeper getPooledZooKeeper() {
+        return zookeeper;
+    }
+
+    @Override
+    public String toString() {
+        return pathPrefix + ": " + getReads() + " reads, " + getWrites() + " writes, "
+            + getWatches() + " watches, " + getEvents() + " events";
+    }
+}
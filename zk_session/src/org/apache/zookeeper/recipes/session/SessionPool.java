@@ -0,0 +1,188 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.Watcher;
+
+/**
+ * Multiplexes many recipe instances over a few ZooKeeper sessions. Each
+ * session costs a heartbeat, an IO thread and an event thread, so instead
+ * of opening one per lock or transaction group you {@link #open} a
+ * {@link SessionHandle} for the path the recipe works under and build the
+ * recipe on {@link SessionHandle#getZooKeeper()}. Handles go to the session
+ * with the fewest handles. <p/>
+ * Requests and watch events are told apart by path: every handle owns a
+ * prefix, and the pool counts the requests under it per handle. Recipes
+ * sharing a session must be able to tell their nodes apart, as WriteLock
+ * does with its per instance node prefix. Sessions that expire are not
+ * reopened, their handles get the Expired event and must be opened again
+ * on a new pool.
+ *
+ */
+public class SessionPool {
+    private static final Logger LOG = Logger.getLogger(SessionPool.class);
+
+    private final List<PooledZooKeeper> sessions;
+    private final DispatchTable table = new DispatchTable();
+    private final AtomicLong unrouted = new AtomicLong();
+    private final List<SessionHandle> handles = new ArrayList<SessionHandle>();
+    private boolean closed;
+
+    /**
+     * opens the sessions; like the ZooKeeper constructor this returns
+     * before they are connected, see {@link #awaitConnected}
+     * @param connectString comma separated host:port pairs
+     * @param sessionTimeout session timeout in milliseconds
+     * @param sessionCount number of sessions to share
+     * @throws IOException if a session could not be opened
+     */
+    public SessionPool(String connectString, int sessionTimeout, int sessionCount) throws IOException {
+        if (sessionCount < 1) {
+            throw new IllegalArgumentException("sessionCount must be at least 1: " + sessionCount);
+        }
+        sessions = new ArrayList<PooledZooKeeper>(sessionCount);
+        try {
+            for (int i = 0; i < sessionCount; i++) {
+                sessions.add(new PooledZooKeeper(connectString, sessionTimeout,
+                        new SessionDispatcher(table, unrouted)));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * waits until every session got connected once
+     * @param timeout the most to wait
+     * @param unit the unit of timeout
+     * @return true if all are connected, false on timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (PooledZooKeeper zk : sessions) {
+            long left = deadline - System.nanoTime();
+            if (!zk.getDispatcher().getConnected().await(left, TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * hands out a handle owning a path prefix
+     * @param pathPrefix the path the recipe works under, a lock dir or a
+     * group path
+     * @param watcher gets the default watcher events under the prefix and
+     * the session state changes, may be null
+     * @return the new handle
+     * @throws IllegalArgumentException if another handle owns pathPrefix
+     */
+    public synchronized SessionHandle open(String pathPrefix, Watcher watcher) {
+        if (closed) {
+            throw new IllegalStateException("Session pool is closed");
+        }
+        if (pathPrefix == null || !pathPrefix.startsWith("/")) {
+            throw new IllegalArgumentException("Path prefix must start with /: " + pathPrefix);
+        }
+        if (pathPrefix.length() > 1 && pathPrefix.endsWith("/")) {
+            pathPrefix = pathPrefix.substring(0, pathPrefix.length() - 1);
+        }
+
+        PooledZooKeeper least = sessions.get(0);
+        for (PooledZooKeeper zk : sessions) {
+            if (zk.getDispatcher().getHandles().size() < least.getDispatcher().getHandles().size()) {
+                least = zk;
+            }
+        }
+
+        SessionHandle handle = new SessionHandle(this, least, pathPrefix, watcher);
+        if (!table.add(handle)) {
+            throw new IllegalArgumentException("Path prefix already has a handle: " + pathPrefix);
+        }
+        least.getDispatcher().getHandles().add(handle);
+        handles.add(handle);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Opened handle " + pathPrefix + " on session 0x" + Long.toHexString(least.getSessionId()));
+        }
+        return handle;
+    }
+
+    /**
+     * hands out a handle without a watcher
+     * @param pathPrefix the path the recipe works under
+     * @return the new handle
+     */
+    public SessionHandle open(String pathPrefix) {
+        return open(pathPrefix, null);
+    }
+
+    /**
+     * return the open handles
+     * @return a copy of the handle list
+     */
+    public synchronized List<SessionHandle> getHandles() {
+        return new ArrayList<SessionHandle>(handles);
+    }
+
+    /**
+     * return the number of sessions shared
+     * @return the session count
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * return the requests and events under no handle's prefix
+     * @return the unrouted count
+     */
+    public long getUnrouted() {
+        return unrouted.get();
+    }
+
+    /**
+     * closes every session, which removes the ephemeral nodes of all handles
+     */
+    public synchronized void close() {
+        closed = true;
+        for (PooledZooKeeper zk : sessions) {
+            try {
+                zk.close();
+            } catch (InterruptedException e) {
+                LOG.warn("Caught: " + e, e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    synchronized void release(SessionHandle handle) {
+        if (handles.remove(handle)) {
+            table.remove(handle);
+            handle.getPooledZooKeeper().getDispatcher().getHandles().remove(handle);
+        }
+    }
+}
@@ -1,14 +1,19 @@
 package org.apache.zookeeper.recipes.tpcp;
 
-import java.io.Serializable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
@@ -18,51 +23,100 @@ import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.data.Stat;
 
 /**
- * Base class for defining common transaction operations
+ * Base class for defining common transaction operations.
  *
+ * Transactions never block on zookeeper: every step is an asynchronous call whose
+ * callback (or a watch) moves the transaction forward, so they all run on the zk
+ * client's event thread. Only user handlers run elsewhere (see {@link TransactionGroup#dispatch}).
  */
-abstract class BaseTransaction implements ITransaction, Runnable {
+abstract class BaseTransaction implements ITransaction {
     private static final List<String> emptyParticipantList = new ArrayList<String>(0);
     protected static final String transactionNodePrefix = "t";
 
     private BaseWatcher defaultWatcher;
     private TransactionData data;
+    /** the transaction znode exists but we couldn't make sense of its data */
+    private boolean unreadable;
 
     protected String zNodePath;
     protected ZooKeeper zkClient;
     protected GroupMember me;
     protected volatile TransactionState state;
+    protected TransactionStatistics statistics;
+
+    /** completed with the decision, once it's reached */
+    private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+    /**
+     * What to do once an asynchronous step is over
+     * @param <T> step result type
+     */
+    protected interface Continuation<T> {
+        /**
+         * Called on the zk event thread with the step result
+         * @param result
+         */
+        public void proceed(T result);
+    }
 
     /**
      * Coordinator constructor.
-     * @param query
+     * @param query encoded query
+     * @param coordinator
+     * @param participants
+     */
+    public BaseTransaction(ByteBuffer query, GroupMember coordinator, List<GroupMember> participants) {
+        initialize(coordinator);
+
+        this.data = new TransactionData(query, coordinator.getName(), getNames(participants));
+    }
+
+    /**
+     * Coordinator constructor for a batch of queries, committed or aborted together.
+     * @param queries encoded queries
      * @param coordinator
      * @param participants
-     * @param zkClient zookeeper client
-     * @throws InterruptedException 
      */
-    public BaseTransaction(Serializable query, GroupMember coordinator, 
-                           List<GroupMember> participants) throws InterruptedException {
+    public BaseTransaction(List<ByteBuffer> queries, GroupMember coordinator, List<GroupMember> participants) {
+        initialize(coordinator);
+
+        this.data = TransactionData.batch(queries, coordinator.getName(), getNames(participants));
+    }
+
+    private void initialize(GroupMember coordinator) {
         initialize();
 
         this.me = coordinator;
         this.zkClient = coordinator.getGroup().getZkClient();
-        createZnode(participants, query, coordinator.getName());
+        this.statistics = coordinator.getGroup().getStatistics();
+    }
+
+    private static List<String> getNames(List<GroupMember> participants) {
+        if (participants == null) {
+            return null;
+        }
+
+        ArrayList<String> memberList = new ArrayList<String>(participants.size());
+
+        for(GroupMember gm : participants) {
+            memberList.add(gm.getName());
+        }
+
+        return memberList;
     }
 
     /**
      * Creates a transaction object from a znode (participant constructor)
      * @param zNodePath path to transaction znode
-     * @param zkClient zookeeper client
-     * @throws InterruptedException 
+     * @param participant
      */
-    public BaseTransaction(String zNodePath, GroupMember participant) throws InterruptedException {
+    public BaseTransaction(String zNodePath, GroupMember participant) {
         initialize();
 
         this.me = participant;
         this.zkClient = me.getGroup().getZkClient();
+        this.statistics = me.getGroup().getStatistics();
         this.zNodePath = zNodePath;
-        readZnode();
     }
 
     private void initialize() {
@@ -70,90 +124,128 @@ abstract class BaseTransaction implements ITransaction, Runnable {
         this.defaultWatcher = new BaseWatcher();
     }
 
-    private void createZnode(List<GroupMember> participants, Serializable query, String coordinatorID) throws InterruptedException {
+    /**
+     * Starts working on this transaction, returns as soon as the first request is sent.
+     */
+    abstract void start();
+
+    /**
+     * True once decisionReached was called. Callbacks arriving after that must be ignored.
+     */
+    protected boolean isFinished() {
+        return me == null;
+    }
+
+    /**
+     * Creates the transaction znode, then our participant node under it.
+     * @param created called with true if both nodes were created
+     */
+    protected void createZnode(final Continuation<Boolean> created) {
         // compose transaction path
-        zNodePath = me.getGroup().getGroupPath() + "/" + TransactionGroup.transactionZnode + "/" + 
+        String path = me.getGroup().getGroupPath() + "/" + TransactionGroup.transactionZnode + "/" + 
             BaseTransaction.transactionNodePrefix;
 
-        ArrayList<String> memberList;
+        // we need a persistent node so it can have children
+        statistics.roundTrip();
+        zkClient.create(path, data.toByteArray(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL, new StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                Code code = Code.get(rc);
+
+                if (code != Code.OK) {
+                    if (Code.NONODE.equals(code)) {
+                        System.out.println("Could not create the znode '" + path + "', the node doesn't have a parent in the Zookeeper.");
+                    }
+                    else if (Code.NODEEXISTS.equals(code)) {
+                        System.out.println("Could not create the znode '" + path + "', the node already exists.");
+                    }
+                    else {
+                        System.out.println("Error while trying to create the znode '" + path + "'.");
+                    }
+
+                    created.proceed(false);
+                    return;
+                }
 
-        if (participants == null) {
-            memberList = null;
-        }
-        else {
-            memberList = new ArrayList<String>(participants.size());
+                zNodePath = name;
 
-            for(GroupMember gm : participants) {
-                memberList.add(gm.getName());
+                // now we create out znode
+                createParticipantNode(created);
             }
-        }
-
-        data = new TransactionData(query, coordinatorID, memberList);
-
-        try {
-            // we need a persistent node so it can have children
-            zNodePath = zkClient.create(zNodePath, data.toByteArray(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
-
-            // now we create out znode
-            createParticipantNode();
+        }, null);
+    }
 
-            this.state = TransactionState.SET;
-        }
-        catch(KeeperException zkEx) {
-            if(Code.NONODE.equals(zkEx.code())){
-                System.out.println("Could not create the znode '" + zNodePath + "', the node doesn't have a parent in the Zookeeper.");
-            }
-            else if (Code.NODEEXISTS.equals(zkEx.code())){
-                System.out.println("Could not create the znode '" + zNodePath + "', the node already exists.");
-            }
-            else {
-                System.out.println("Error while trying to create the znode '" + zNodePath + "'.");
+    /**
+     * Reads the transaction znode data.
+     * @param read called with true once data is available, false if it couldn't be read
+     */
+    protected void readZnode(final Continuation<Boolean> read) {
+        // getData alone tells us whether the node exists, no need to ask first
+        statistics.roundTrip();
+        statistics.roundTripSaved();
+
+        zkClient.getData(zNodePath, false, new DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] zdata, Stat s) {
+                if (rc == Code.OK.intValue()) {
+                    znodeRead(TransactionData.readByteArray(zdata), read);
+                }
+                else {
+                    znodeNotRead(rc, read);
+                }
             }
-        }
+        }, null);
     }
 
-    private void readZnode() throws InterruptedException {
-        try {
-            Stat s = zkClient.exists(zNodePath, false);
+    private void znodeRead(TransactionData data, Continuation<Boolean> read) {
+        if (data == null) {
+            System.out.println("Could not read the data of the znode '" + zNodePath + "'.");
+            // we may still have to vote on it, see isUnreadable
+            this.unreadable = true;
+            this.state = TransactionState.SET;
+            read.proceed(false);
+            return;
+        }
 
-            if (s == null) {
-                // it seems transaction was aborted before we could even vote, we can just abort it locally and continue
-                // create dummy data to force participant imp. to abort
-                this.data = new TransactionData(null, null, emptyParticipantList);
-            }
-            else {
-                // TODO revise this code portion : couldn't I use just getData and avoid getting znode stat?
-                byte[] zdata = zkClient.getData(zNodePath, false, s);
+        this.data = data;
+        this.state = TransactionState.SET;
 
-                this.data = TransactionData.readByteArray(zdata);
-            }
+        read.proceed(true);
+    }
 
-            this.state = TransactionState.SET;
+    private void znodeNotRead(int rc, Continuation<Boolean> read) {
+        if (Code.NONODE.intValue() == rc) {
+            // it seems transaction was aborted before we could even vote, we can just abort it locally and continue
+            // create dummy data to force participant imp. to abort
+            znodeRead(new TransactionData(null, null, emptyParticipantList), read);
         }
-        catch(KeeperException zkEx) {
-            if(Code.NONODE.equals(zkEx.code())){
-                System.out.println("Could not get the data of the znode '" + zNodePath + "', the node doesn't exist.");
-            }
-            else {
-                System.out.println("Error while processing the znode '" + zNodePath + "'.");
-            }
+        else {
+            System.out.println("Error while processing the znode '" + zNodePath + "'.");
+            read.proceed(false);
         }
     }
 
     /**
      * Writes in my znode data string
-     * @param zNodePath
      * @param data
-     * @throws InterruptedException
+     * @param written called with true once data is written, may be null
      */
-    private void setMyData(String data) throws InterruptedException {
-        try {
-            String myZnode = getPath(me.getName());
-            zkClient.setData(myZnode, data.getBytes(), -1);
-        } 
-        catch (KeeperException e) {
-            e.printStackTrace();
-        }
+    private void setMyData(String data, final Continuation<Boolean> written) {
+        String myZnode = getPath(me.getName());
+
+        statistics.roundTrip();
+        zkClient.setData(myZnode, data.getBytes(), -1, new StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                if (rc != Code.OK.intValue()) {
+                    KeeperException.create(Code.get(rc), path).printStackTrace();
+                }
+
+                if (written != null) {
+                    written.proceed(rc == Code.OK.intValue());
+                }
+            }
+        }, null);
     }
 
     /**
@@ -165,11 +257,21 @@ abstract class BaseTransaction implements ITransaction, Runnable {
     }
 
     /**
-     * Get the transaction query defined by the coordinator.
-     * @return query object
+     * Get the transaction queries defined by the coordinator, decoded by the group's
+     * codec: those of a batch in order, or the only one.
+     * @return query objects
+     * @throws IOException if a query can't be decoded
      */
-    protected Serializable getQuery() {
-        return this.data.getQuery();
+    protected List<Object> getQueries() throws IOException {
+        return this.data.getQueries(me.getGroup().getQueryCodec());
+    }
+
+    /**
+     * True if readZnode found the transaction znode but not data we know
+     * (a newer format or garbage). We can't tell whether we take part then.
+     */
+    protected boolean isUnreadable() {
+        return unreadable;
     }
 
     /**
@@ -187,16 +289,17 @@ abstract class BaseTransaction implements ITransaction, Runnable {
      * setting a flag meaning you want to have it committed, thus it will be committed
      * if everyone agrees on this. 
      * @param preCommit true change state to COMMITTED, false to PRE_COMMITED.
+     * @param written called once the new state is written, may be null
      * @throws Exception when another action (rollback or commit) was previously taken.
      */
-    protected void commit(boolean preCommit) throws Exception {
+    protected void commit(boolean preCommit, Continuation<Boolean> written) throws Exception {
         if (state == TransactionState.SET) {
             if (preCommit)
                 state = TransactionState.PRE_COMMITTED;
             else
                 state = TransactionState.COMMITTED;
 
-            setMyData(state.toString());
+            setMyData(state.toString(), written);
         }
         else
             throw new Exception("Cannot commit. Previous action was taken.");
@@ -205,18 +308,28 @@ abstract class BaseTransaction implements ITransaction, Runnable {
     /**
      * Aborts an ongoing transaction.
      * If anyone aborts the transaction, it will be aborted disregarding the rest votes.
+     * @param written called once the new state is written, may be null
      * @throws Exception when another action (rollback or commit) was previously taken.
      */
-    protected void abort() throws Exception {
+    protected void abort(Continuation<Boolean> written) throws Exception {
         if (state == TransactionState.SET) {
             state = TransactionState.ABORTED;
-            setMyData(state.toString());
+            setMyData(state.toString(), written);
         }
         else {
             throw new Exception("Cannot abort. Previous action was taken.");
         }
     }
 
+    /**
+     * Writes the decision we learned (our final state) on our node. The reaper
+     * only deletes a transaction once every participant node shows one.
+     * @param written called once the state is written, may be null
+     */
+    protected void recordDecision(Continuation<Boolean> written) {
+        setMyData(state.toString(), written);
+    }
+
     /**
      * This method is called for events watched with getDefaultWatcher 
      * @param event
@@ -233,65 +346,98 @@ abstract class BaseTransaction implements ITransaction, Runnable {
 
     /**
      * Creates a transaction child node with id equals me.getName()
-     * @throws InterruptedException
+     * @param created called with true if the node was created
      */
-    protected void createParticipantNode() throws InterruptedException {
-        try {
-            String participantNodePath = getPath(me.getName());
+    protected void createParticipantNode(final Continuation<Boolean> created) {
+        String participantNodePath = getPath(me.getName());
+
+        // creates our znode with SET state (meaning we are ready)
+        statistics.roundTrip();
+        zkClient.create(participantNodePath, TransactionState.SET.toString().getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, new StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                Code code = Code.get(rc);
+
+                if (Code.NONODE.equals(code)) {
+                    System.out.println("Could not create the participant znode, the node doesn't have a parent in the Zookeeper.");
+                }
+                else if (Code.NODEEXISTS.equals(code)) {
+                    System.out.println("Could not create the participant znode, the node already exists.");
+                }
+                else if (code != Code.OK) {
+                    System.out.println("Error while trying to create the znode '" + path + "'.");
+                }
 
-            // creates our znode with SET state (meaning we are ready)
-            zkClient.create(participantNodePath, TransactionState.SET.toString().getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
-        }
-        catch(KeeperException zkEx) {
-            if(Code.NONODE.equals(zkEx.code())){
-                System.out.println("Could not create the participant znode, the node doesn't have a parent in the Zookeeper.");
+                created.proceed(code == Code.OK);
             }
-            else if (Code.NODEEXISTS.equals(zkEx.code())){
-                System.out.println("Could not create the participant znode, the node already exists.");
-            }
-            else {
-                System.out.println("Error while trying to create the znode '" + zNodePath + "'.");
-            }
-        }
+        }, null);
     }
 
     /**
      * Reads a transaction child node data and sets a watch if asked to
-     * CAUTION: node may not exists (see returned value)
+     * CAUTION: node may not exists (see read result)
      * @param childNodePath full path of child node
-     * @param watch true to set the default watcher - a watch is set on exists and getData calls.
-     * @return read data - null if node does not exists
-     * @throws InterruptedException 
+     * @param watch true to set the default watcher on the node data
+     * @param watchCreation true to also be told (through the default watcher) when a node which
+     *                      does not exist yet gets created; costs a second request when it's missing
+     * @param read called with read data - null if node does not exists. Not called if the
+     *             transaction is finished by then.
      */
-    protected String readParticipantNode(String childNodePath, boolean watch) throws InterruptedException {
-        String data = null;
-
-        try {
-            Stat s = zkClient.exists(childNodePath, false);
-
-            if (s != null) {
-                byte[] zdata;
-
-                if (watch) {
-                    zdata = zkClient.getData(childNodePath, defaultWatcher, s);
+    protected void readParticipantNode(final String childNodePath, boolean watch, final boolean watchCreation,
+                                       final Continuation<String> read) {
+        final ZooKeeper zk = zkClient;
+        final Watcher w = watch ? defaultWatcher : null;
+
+        // a single getData answers whether the node exists and what it holds
+        statistics.roundTrip();
+
+        zk.getData(childNodePath, w, new DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] zdata, Stat s) {
+                if (isFinished()) {
+                    return;
                 }
-                else {
-                    zdata = zkClient.getData(childNodePath, false, s);
+
+                if (rc != Code.NONODE.intValue() || !watchCreation) {
+                    statistics.roundTripSaved();
+                    participantNodeRead(rc, zdata, read);
+                    return;
                 }
 
-                data = new String(zdata);
+                // getData leaves no watch on a missing node, exists does
+                statistics.roundTrip();
+
+                zk.exists(path, defaultWatcher, new StatCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, Stat s) {
+                        if (isFinished()) {
+                            return;
+                        }
+
+                        if (rc == Code.OK.intValue()) {
+                            // created meanwhile, we have a watch on it now: read it again
+                            readParticipantNode(path, true, true, read);
+                        }
+                        else {
+                            participantNodeRead(rc, null, read);
+                        }
+                    }
+                }, null);
             }
+        }, null);
+    }
+
+    private void participantNodeRead(int rc, byte[] zdata, Continuation<String> read) {
+        String data = null;
+
+        if (rc == Code.OK.intValue()) {
+            data = new String(zdata);
         }
-        catch (KeeperException zkEx) {
-            if (Code.NONODE.equals(zkEx.code())) {
-                System.out.println("Could not get the data of the znode '" + zNodePath + "', the node doesn't exist.");
-            }
-            else {
-                System.out.println("Error while processing the znode '" + zNodePath + "'.");
-            }
+        else if (rc != Code.NONODE.intValue()) {
+            System.out.println("Error while processing the znode '" + zNodePath + "'.");
         }
 
-        return data;
+        read.proceed(data);
     }
 
     /**
@@ -322,9 +468,7 @@ abstract class BaseTransaction implements ITransaction, Runnable {
         me = null;
 
         // wake everyone waiting for this result
-        synchronized (this) {
-            notifyAll();
-        }
+        result.complete(state == TransactionState.COMMITTED);
     }
 
     /**
@@ -332,15 +476,21 @@ abstract class BaseTransaction implements ITransaction, Runnable {
      * @throws InterruptedException 
      */
     public boolean getResult() throws InterruptedException {
-        synchronized (this) {
-            // if decision has not yet been made, wait for it
-            if (state != TransactionState.COMMITTED && state != TransactionState.ABORTED)
-                wait();
+        try {
+            return result.get();
         }
+        catch (ExecutionException e) {
+            // we never complete it exceptionally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
 
-        // if we get here, a decision has been made
-
-        return state == TransactionState.COMMITTED;
+    /**
+     * ITransaction implementation
+     */
+    public CompletionStage<Boolean> resultAsync() {
+        // callers can't complete ours, their timeouts don't affect getResult
+        return result.minimalCompletionStage();
     }
 
     /**
@@ -388,7 +538,12 @@ abstract class BaseTransaction implements ITransaction, Runnable {
                 return;
             }
 
+            long start = System.nanoTime();
+            TransactionStatistics s = statistics;
+
             nodeEvent(event);
+
+            s.eventThreadDwell(System.nanoTime() - start);
         }
     }
 }
@@ -0,0 +1,135 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands the transactions pending at a member to an {@link IBatchTransactionHandler}
+ * all at once, then casts their votes. One call runs at a time, off the zk event
+ * thread; what arrives during a call waits for the next one, so batches grow with
+ * the handler's cost.
+ */
+class BatchPreparer {
+    private final TransactionGroup group;
+    private final IBatchTransactionHandler<Object> handler;
+
+    private List<ParticipantTransaction> pending;
+    private boolean draining;
+
+    public BatchPreparer(TransactionGroup group, IBatchTransactionHandler<Object> handler) {
+        this.group = group;
+        this.handler = handler;
+        this.pending = new ArrayList<ParticipantTransaction>();
+    }
+
+    /**
+     * Queues a transaction whose participant node is created
+     * @param pt
+     */
+    public synchronized void add(ParticipantTransaction pt) {
+        pending.add(pt);
+
+        if (!draining) {
+            draining = true;
+
+            group.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    private synchronized List<ParticipantTransaction> take() {
+        if (pending.isEmpty()) {
+            draining = false;
+            return null;
+        }
+
+        List<ParticipantTransaction> batch = pending;
+        pending = new ArrayList<ParticipantTransaction>();
+
+        return batch;
+    }
+
+    private void drain() {
+        List<ParticipantTransaction> batch;
+
+        while ((batch = take()) != null) {
+            prepare(batch);
+        }
+    }
+
+    /**
+     * Runs the handler once over the queries of every transaction and votes
+     * @param batch transactions to vote on
+     */
+    private void prepare(List<ParticipantTransaction> batch) {
+        List<ParticipantTransaction> readable = new ArrayList<ParticipantTransaction>(batch.size());
+        List<Integer> queryCounts = new ArrayList<Integer>(batch.size());
+        List<Long> ids = new ArrayList<Long>(batch.size());
+        List<Object> queries = new ArrayList<Object>(batch.size());
+
+        for (ParticipantTransaction pt : batch) {
+            List<Object> q;
+
+            try {
+                q = pt.getQueries();
+            }
+            catch (IOException e) {
+                // we can't run what we can't read
+                System.out.println("Could not decode the query of transaction '" + pt.zNodePath + "': " + e.getMessage());
+                pt.vote(false);
+                continue;
+            }
+
+            long id = pt.getID();
+            for (int i = 0; i < q.size(); i++) {
+                ids.add(id);
+            }
+            queries.addAll(q);
+            readable.add(pt);
+            queryCounts.add(q.size());
+        }
+
+        if (readable.isEmpty()) {
+            return;
+        }
+
+        long[] transactionIDs = new long[ids.size()];
+        for (int i = 0; i < transactionIDs.length; i++) {
+            transactionIDs[i] = ids.get(i);
+        }
+
+        boolean[] votes = null;
+
+        try {
+            votes = handler.executeBatch(transactionIDs, queries);
+
+            if (votes == null || votes.length != transactionIDs.length) {
+                System.out.println("Batch handler gave " + (votes == null ? "no" : votes.length)
+                                   + " votes for " + transactionIDs.length + " queries, aborting them.");
+                votes = null;
+            }
+        }
+        catch (RuntimeException e) {
+            // the whole batch would wait on its votes forever
+            System.out.println("Batch handler failed, aborting " + readable.size() + " transactions: " + e);
+        }
+
+        group.getStatistics().prepareBatch(readable.size());
+
+        int q = 0;
+        for (int i = 0; i < readable.size(); i++) {
+            boolean commit = votes != null;
+
+            for (int end = q + queryCounts.get(i); q < end; q++) {
+                commit = commit && votes[q];
+            }
+
+            readable.get(i).vote(commit);
+        }
+    }
+}
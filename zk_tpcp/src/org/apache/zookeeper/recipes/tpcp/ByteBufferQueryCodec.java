@@ -0,0 +1,22 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Query codec for queries which already are bytes (protobuf, flat buffers and the like).
+ * Queries are written into the transaction znode as they are, and handlers get a
+ * read-only view over the znode data, nothing is copied or deserialized.
+ *
+ */
+public class ByteBufferQueryCodec implements QueryCodec<ByteBuffer> {
+    @Override
+    public ByteBuffer encode(ByteBuffer query) {
+        // leave the caller's position alone
+        return query == null ? null : query.duplicate();
+    }
+
+    @Override
+    public ByteBuffer decode(ByteBuffer data) {
+        return data;
+    }
+}
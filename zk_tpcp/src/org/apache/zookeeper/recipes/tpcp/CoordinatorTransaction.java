@@ -1,11 +1,18 @@
 package org.apache.zookeeper.recipes.tpcp;
 
-import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.Watcher.Event.EventType;
 
@@ -29,12 +36,35 @@ class CoordinatorTransaction extends BaseTransaction {
      */
     private long participantsGreeted;
 
+    /**
+     * Participants whose node we have a data watch on (or a read in flight setting one)
+     * **** ATENTION: Change this only when in sync syncLock ****
+     */
+    private Set<String> watched;
+
     /**** ATENTION: Change this.state only when in sync syncLock ****/
 
-    public CoordinatorTransaction(Serializable query, GroupMember coordinator,
-                                  List<GroupMember> participants) throws InterruptedException {
+    public CoordinatorTransaction(ByteBuffer query, GroupMember coordinator,
+                                  List<GroupMember> participants) {
         super(query, coordinator, participants);
 
+        initialize(participants);
+    }
+
+    /**
+     * A transaction running a batch of queries, committed or aborted together
+     * @param queries encoded queries
+     * @param coordinator
+     * @param participants
+     */
+    public CoordinatorTransaction(List<ByteBuffer> queries, GroupMember coordinator,
+                                  List<GroupMember> participants) {
+        super(queries, coordinator, participants);
+
+        initialize(participants);
+    }
+
+    private void initialize(List<GroupMember> participants) {
         this.participants = new Hashtable<String, TransactionState>(participants.size());
 
         // initialize all participants with 'preset' state to indicate that they have not yet joined the transaction
@@ -45,13 +75,19 @@ class CoordinatorTransaction extends BaseTransaction {
         this.participants.put(me.getName(), TransactionState.PRE_COMMITTED);
         this.participantVotes = 1;
         this.participantsGreeted = 1;
+        this.watched = new HashSet<String>();
 
         this.syncLock = new Object();
     }
 
-    private void updateParticipantState(String participantID) throws InterruptedException {
-        TransactionState oldState;
-        TransactionState newState;
+    /**
+     * Reads the votes of a group of participants with all requests in flight at once,
+     * the results are applied together once every reply is in (see {@link VoteBatch}).
+     * Participants whose vote is final, or whose node we're already watching, are skipped.
+     * @param participantIDs participants which may have changed
+     */
+    private void collectVotes(Collection<String> participantIDs) {
+        List<String> toRead = new ArrayList<String>(participantIDs.size());
 
         synchronized (this.syncLock) {
             // if our (coordinator's) state is SET, there's no decision yet
@@ -61,127 +97,227 @@ class CoordinatorTransaction extends BaseTransaction {
                 return;
             }
 
-            oldState = participants.get(participantID);
-        }
+            for (String participantID : participantIDs) {
+                TransactionState oldState = participants.get(participantID);
 
-        if (oldState == null) {
-            System.err.println("Invalid participant '"+participantID+"' on transaction '"+zNodePath+"'");
-            return;
+                if (oldState == null) {
+                    System.err.println("Invalid participant '"+participantID+"' on transaction '"+zNodePath+"'");
+                }
+                else if (oldState == TransactionState.ABORTED || oldState == TransactionState.PRE_COMMITTED) {
+                    // the watcher was left alone - we should ignore this
+                    // or we are looking at children list and getting new joined participants while others have already voted
+                    // TODO: improve left alone watcher - i.e. find a way to avoid setting watcher when it's not really needed
+                }
+                else if (watched.add(participantID)) {
+                    // from this line, the participant oldState is one of { PRESET, SET } and we have no watch on it
+                    toRead.add(participantID);
+                }
+                // else our watch will tell us when its vote is cast
+            }
         }
-        else if (oldState == TransactionState.ABORTED || oldState == TransactionState.PRE_COMMITTED) {
-            // the watcher was left alone - we should ignore this
-            // or we are looking at children list and getting new joined participants while others have already voted
-            // TODO: improve left alone watcher - i.e. find a way to avoid setting watcher when it's not really needed
+
+        if (toRead.isEmpty()) {
             return;
         }
 
-        // from this line, the participant oldState is one of { PRESET, SET } and newState is possibly one of { SET, PRE_COMMITED, ABORTED }
-
         // it's up to me to retrieve the znode state
         // we can't a priori know the participant actual state thus we can't know if we should set a watch or not
         // TODO: there's an issue here: left alone watcher - find a way to avoid the last watch (which is left alone)
-        String voteData = readParticipantNode(getPath(participantID), true);
-
-        if (voteData == null) {
-            // damn! participant crashed (ephemeral node was deleted)
-            // we should abort
-            newState = TransactionState.ABORTED;
+        final VoteBatch batch = new VoteBatch(toRead.size());
+
+        for (final String participantID : toRead) {
+            // a missing node is a participant who crashed, we don't wait for it to come back
+            readParticipantNode(getPath(participantID), true, false, new Continuation<String>() {
+                @Override
+                public void proceed(String voteData) {
+                    batch.collected(participantID, voteData);
+                }
+            });
         }
-        else
-            newState = TransactionState.parse(voteData);
+    }
 
+    /**
+     * Applies a batch of votes and decides if we can.
+     * @param votes participant ID -> state read from its node
+     */
+    private void applyVotes(Map<String, TransactionState> votes) {
         synchronized (this.syncLock) {
-            // old state maybe out sync
-            oldState = participants.get(participantID);
+            // if our (coordinator's) state is not SET, we decided while reading
+            if (state != TransactionState.SET) {
+                return;
+            }
+
+            boolean aborted = false;
+
+            for (Map.Entry<String, TransactionState> vote : votes.entrySet()) {
+                String participantID = vote.getKey();
+                TransactionState newState = vote.getValue();
+
+                // old state maybe out sync
+                TransactionState oldState = participants.get(participantID);
+
+                // only the first read seeing a vote counts it
+                if (oldState != TransactionState.PRESET && oldState != TransactionState.SET) {
+                    continue;
+                }
 
-            if (oldState == TransactionState.PRESET || oldState == TransactionState.SET) {
                 participants.put(participantID, newState);
 
                 // if this is the first time a participant shows up, we should count him in
                 if (oldState == TransactionState.PRESET)
                     participantsGreeted++;
-            }
-
-            // if someone casts a vote, we should see if we can reach a decision
 
-            // if our (coordinator's) state is SET, there's no decision yet
-            if (state == TransactionState.SET) {
-                try {
-                    if (newState == TransactionState.PRE_COMMITTED) {
-                        // have to wait for other's votes
-                        // let's update number of decided nodes
-                        participantVotes++;
-
-                        // if everyone has voted, we can decide
-                        if (participantVotes == participants.size()) {
-                            commit(false);
-                            finish();
-                        }
-                    }
-                    else if (newState == TransactionState.ABORTED) {
-                        // can decide already
-                        abort();
-                        finish();
-                    }
+                if (newState == TransactionState.PRE_COMMITTED) {
+                    // let's update number of decided nodes
+                    participantVotes++;
                 }
-                catch (Exception e) {
-                    System.err.println("Double decision, prog. error");
+                else if (newState == TransactionState.ABORTED) {
+                    aborted = true;
                 }
             }
+
+            // if someone casts a vote, we should see if we can reach a decision
+            if (aborted) {
+                // one abort is enough
+                decide(false);
+            }
+            else if (participantVotes == participants.size()) {
+                // everyone has voted
+                decide(true);
+            }
         }
     }
 
     /**
-     * Greets new participants
-     * @return true if every expected participant was greeted at the end of this execution
-     * @throws InterruptedException
+     * A participant node changed (vote cast) or was deleted (crash), our watch on it is gone.
+     * @param participantID
      */
-    private boolean greetNewParticipants() throws InterruptedException {
-        boolean everyOneIn = false;
+    private void participantChanged(String participantID) {
+        synchronized (this.syncLock) {
+            if (state != TransactionState.SET) {
+                return;
+            }
 
-        try {
-            List<String> children = zkClient.getChildren(zNodePath, getDefaultWatcher());
+            watched.remove(participantID);
+        }
 
-            // avoid multiple watcher calls to collide
-            synchronized (this.syncLock) {
-                for (String c : children)
-                    updateParticipantState(c);
+        collectVotes(Collections.singletonList(participantID));
+    }
 
-                everyOneIn = participantsGreeted == participants.size();
+    /**
+     * Writes our decision, the transaction finishes once it's written.
+     * **** ATENTION: Call this only when in sync syncLock ****
+     * @param commit true to commit, false to abort
+     */
+    private void decide(boolean commit) {
+        Continuation<Boolean> finish = new Continuation<Boolean>() {
+            @Override
+            public void proceed(Boolean written) {
+                finish();
             }
-        }
-        catch (KeeperException e) {
-            if (Code.NONODE.equals(e.code())) {
-                System.out.println("Could not get the children of the znode '" + zNodePath + "', the node doesn't exist.");
+        };
+
+        try {
+            if (commit) {
+                commit(false, finish);
             }
             else {
-                System.out.println("Error while trying to get the children of the znode '" + zNodePath + "'.");
+                abort(finish);
             }
         }
-
-        return everyOneIn;
+        catch (Exception e) {
+            System.err.println("Double decision, prog. error");
+        }
     }
 
-    private void coordinate() throws InterruptedException {
-        // welcome new participants that join transaction
-        greetNewParticipants();
+    /**
+     * Greets new participants
+     */
+    private void greetNewParticipants() {
+        statistics.roundTrip();
+        zkClient.getChildren(zNodePath, getDefaultWatcher(), new ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                if (rc == Code.NONODE.intValue()) {
+                    System.out.println("Could not get the children of the znode '" + path + "', the node doesn't exist.");
+                    return;
+                }
+                else if (rc != Code.OK.intValue()) {
+                    System.out.println("Error while trying to get the children of the znode '" + path + "'.");
+                    return;
+                }
 
-        // watcher events will do the rest
+                collectVotes(children);
+            }
+        }, null);
     }
 
-    //@Override
-    public void run() {
-        try {
-            coordinate();
+    /**
+     * A participant left the group (or crashed). If we are still waiting on its vote,
+     * it will never come, so we abort.
+     * @param participantID participant who left
+     */
+    void participantLeft(String participantID) {
+        synchronized (this.syncLock) {
+            if (state != TransactionState.PRESET && state != TransactionState.SET) {
+                return;
+            }
+
+            TransactionState oldState = participants.get(participantID);
+
+            if (oldState == TransactionState.PRESET || oldState == TransactionState.SET) {
+                participants.put(participantID, TransactionState.ABORTED);
+
+                // until our znode exists there's nowhere to write the decision, znodeCreated takes care of it
+                if (state == TransactionState.SET) {
+                    decide(false);
+                }
+            }
         }
-        catch (InterruptedException e) {
-            System.out.println("Coordinator was interrupted while working, no coordination is being done!");
+    }
+
+    @Override
+    void start() {
+        createZnode(new Continuation<Boolean>() {
+            @Override
+            public void proceed(Boolean created) {
+                znodeCreated(created);
+            }
+        });
+    }
+
+    private void znodeCreated(boolean created) {
+        synchronized (this.syncLock) {
+            if (!created) {
+                // nobody can vote on a transaction which does not exist
+                state = TransactionState.ABORTED;
+                finish();
+                return;
+            }
+
+            state = TransactionState.SET;
+
+            // someone may have left while we were creating our nodes
+            if (participants.contains(TransactionState.ABORTED)) {
+                decide(false);
+                return;
+            }
         }
+
+        // welcome new participants that join transaction
+        greetNewParticipants();
+
+        // watcher and callbacks will do the rest
     }
 
     private void finish() {
         // free what we don't need anymore
         participants = null;
+        watched = null;
+
+        statistics.transactionCoordinated();
+
+        me.getGroup().transactionFinished(this);
 
         decisionReached();
     }
@@ -195,29 +331,64 @@ class CoordinatorTransaction extends BaseTransaction {
 
         EventType etype = event.getType();
 
-        try {
-            if (path.startsWith(transactionNodePrefix)) {
-                // it's transaction root znode
-                // get children changed event
-                if (etype == EventType.NodeChildrenChanged) {
-                    greetNewParticipants();
-                }
+        if (path.startsWith(transactionNodePrefix)) {
+            // it's transaction root znode
+            // get children changed event
+            if (etype == EventType.NodeChildrenChanged) {
+                greetNewParticipants();
             }
-            else {
-                // it's a participant node
-                // get data changed event
-                if (etype == EventType.NodeDataChanged) {
-                    updateParticipantState(path);
-                }
-                else if (etype == EventType.NodeDeleted) {
-                    // damn a participant has crashed - let's update his state
-                    // if he crashed after voting, we still have a change to commit
-                    updateParticipantState(path);
-                }
+        }
+        else {
+            // it's a participant node
+            // get data changed event
+            if (etype == EventType.NodeDataChanged) {
+                participantChanged(path);
+            }
+            else if (etype == EventType.NodeDeleted) {
+                // damn a participant has crashed - let's update his state
+                // if he crashed after voting, we still have a change to commit
+                participantChanged(path);
             }
         }
-        catch (InterruptedException e) {
-            // TODO some thing, this is bad :(
+    }
+
+    /////////////////////////////
+    //// VOTE BATCH  ////////////
+    /////////////////////////////
+
+    /**
+     * Votes read by one collectVotes call. Replies come one by one on the zk event
+     * thread, votes are applied all together once the last one arrives.
+     */
+    private class VoteBatch {
+        private final Map<String, TransactionState> votes;
+        private int pending;
+
+        public VoteBatch(int size) {
+            this.votes = new HashMap<String, TransactionState>(size * 2);
+            this.pending = size;
+        }
+
+        public void collected(String participantID, String voteData) {
+            TransactionState vote;
+
+            if (voteData == null) {
+                // damn! participant crashed (ephemeral node was deleted)
+                // we should abort
+                vote = TransactionState.ABORTED;
+            }
+            else
+                vote = TransactionState.parse(voteData);
+
+            synchronized (this) {
+                votes.put(participantID, vote);
+
+                if (--pending > 0) {
+                    return;
+                }
+            }
+
+            applyVotes(votes);
         }
     }
 }
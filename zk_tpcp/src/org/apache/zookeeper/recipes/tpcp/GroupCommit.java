@@ -0,0 +1,182 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Buffers the everyone transactions begun on a group and runs them as batches,
+ * one transaction (one znode, one vote round) per batch.
+ *
+ * A batch leaves as soon as the one before it is decided, so an idle group adds
+ * no delay and a busy one sends whatever arrived during a round: the window follows
+ * the commit latency. A batch also leaves once it holds maxBatch queries, or once
+ * its first query waited maxDelay, whatever is in flight.
+ */
+class GroupCommit {
+    private final TransactionGroup group;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final ScheduledThreadPoolExecutor timer;
+
+    private List<ByteBuffer> queries;
+    private List<BatchedTransaction> waiting;
+    private ScheduledFuture<?> flushTimer;
+    private int inFlight;
+
+    /**
+     * @param group group the batches are begun on
+     * @param maxBatch most queries in a batch
+     * @param maxDelayNanos longest time a query waits for its batch to leave, 0 for no limit
+     */
+    public GroupCommit(TransactionGroup group, int maxBatch, long maxDelayNanos) {
+        this.group = group;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = maxDelayNanos;
+        this.queries = new ArrayList<ByteBuffer>();
+        this.waiting = new ArrayList<BatchedTransaction>();
+
+        if (maxDelayNanos > 0) {
+            // goes away when idle, like the group's other threads
+            this.timer = new ScheduledThreadPoolExecutor(1);
+            this.timer.setKeepAliveTime(60L, TimeUnit.SECONDS);
+            this.timer.allowCoreThreadTimeOut(true);
+            this.timer.setRemoveOnCancelPolicy(true);
+        }
+        else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Adds a query to the open batch
+     * @param query encoded query
+     * @return the query's own transaction, decided with its batch
+     */
+    public synchronized ITransaction add(ByteBuffer query) {
+        BatchedTransaction t = new BatchedTransaction();
+
+        queries.add(query);
+        waiting.add(t);
+
+        if (inFlight == 0 || queries.size() >= maxBatch) {
+            flush();
+        }
+        else if (flushTimer == null && timer != null) {
+            flushTimer = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (GroupCommit.this) {
+                        flushTimer = null;
+                        flush();
+                    }
+                }
+            }, maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        return t;
+    }
+
+    /**
+     * Sends the open batch, if any, and stops the timer
+     */
+    public synchronized void close() {
+        flush();
+
+        if (timer != null) {
+            timer.shutdown();
+        }
+    }
+
+    /**
+     * Begins a transaction for the open batch.
+     * **** ATENTION: Call this only when in sync this ****
+     */
+    private void flush() {
+        if (flushTimer != null) {
+            flushTimer.cancel(false);
+            flushTimer = null;
+        }
+
+        if (queries.isEmpty()) {
+            return;
+        }
+
+        final List<BatchedTransaction> batch = waiting;
+        List<ByteBuffer> batchQueries = queries;
+
+        queries = new ArrayList<ByteBuffer>();
+        waiting = new ArrayList<BatchedTransaction>();
+        inFlight++;
+
+        group.getStatistics().batchBegun(batch.size());
+
+        ITransaction t;
+
+        try {
+            t = group.beginBatch(batchQueries);
+        }
+        catch (RuntimeException e) {
+            // e.g. we left the group meanwhile, nobody would ever decide these
+            System.out.println("Could not begin a batch of " + batch.size() + " queries: " + e);
+
+            inFlight--;
+            for (BatchedTransaction bt : batch) {
+                bt.decided(false);
+            }
+            return;
+        }
+
+        t.resultAsync().whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean committed, Throwable error) {
+                for (BatchedTransaction t : batch) {
+                    t.decided(committed != null && committed);
+                }
+
+                batchDecided();
+            }
+        });
+    }
+
+    private synchronized void batchDecided() {
+        inFlight--;
+
+        // what arrived during the round goes now
+        flush();
+    }
+
+    /**
+     * A query of a batch, as its caller sees it
+     */
+    private static class BatchedTransaction implements ITransaction {
+        private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+        void decided(boolean committed) {
+            result.complete(committed);
+        }
+
+        @Override
+        public boolean getResult() throws InterruptedException {
+            try {
+                return result.get();
+            }
+            catch (ExecutionException e) {
+                // we never complete it exceptionally
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        @Override
+        public CompletionStage<Boolean> resultAsync() {
+            return result.minimalCompletionStage();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.util.List;
+
+/**
+ * Handler executing many transactions at once, e.g. to write all their prepares
+ * with a single fsync. A group whose handler implements this hands it every
+ * transaction pending at this member in one call instead of calling
+ * {@link #execute(long, Object)} on each; transactions arriving meanwhile go in the next call.
+ * A handler of Serializable queries implements this with T = Serializable next to
+ * {@link ITransactionHandler}.
+ * @param <T> query type, the type the codec decodes to
+ */
+public interface IBatchTransactionHandler<T> extends ITypedTransactionHandler<T> {
+    /**
+     * Callback method for executing many transactions at once.
+     * The queries of a group commit batch (see {@link TransactionGroup#setGroupCommit})
+     * come in order under the same transaction ID, which commits only if all of them do.
+     * @param transactionIDs transaction unique identifier of each query
+     * @param queries queries to be executed, as decoded by the group's codec
+     * @return a vote for each query, true to commit, false to abort
+     */
+    public boolean[] executeBatch(long[] transactionIDs, List<T> queries);
+}
@@ -0,0 +1,17 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+/**
+ * Tells which transactions must be applied one after the other. Transactions whose
+ * queries give equal keys (equals/hashCode) are executed, and their results given,
+ * one at a time in transaction ID order; others run in parallel.
+ * See {@link TransactionGroup#setOrderingKey}.
+ * @param <T> query type, the type the codec decodes to
+ */
+public interface IOrderingKey<T> {
+    /**
+     * Called on the zk event thread, so keep it cheap.
+     * @param query query of a transaction, as decoded by the group's codec
+     * @return the query's key, null if it may run in any order
+     */
+    public Object getOrderingKey(T query);
+}
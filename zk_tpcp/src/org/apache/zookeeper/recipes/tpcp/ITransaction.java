@@ -1,5 +1,7 @@
 package org.apache.zookeeper.recipes.tpcp;
 
+import java.util.concurrent.CompletionStage;
+
 /**
  * Contrat for a distribuited transaction.
  *
@@ -14,8 +16,11 @@ public interface ITransaction {
 
     /**
      * Nonblocking call to get transaction result.
-     * @return true for committed, false for aborted
+     * The stage completes with true for committed, false for aborted. Non-async
+     * dependent stages may run on the zk event thread, so use the *Async variants
+     * (or your own executor) for anything which blocks.
+     * Timeouts can be set on {@code resultAsync().toCompletableFuture()}, it's a copy.
+     * @return stage completing once a decision is reached
      */
-    // TODO nonblocking call
-    //public boolean getResultAsync(Call);
+    public CompletionStage<Boolean> resultAsync();
 }
@@ -5,7 +5,7 @@ import java.io.Serializable;
 /**
  * Handler for executing transactions.
  */
-public interface ITransactionHandler {
+public interface ITransactionHandler extends ITypedTransactionHandler<Serializable> {
     /**
      * Callback method for transaction execution.
      * @param transactionID transaction unique identifier
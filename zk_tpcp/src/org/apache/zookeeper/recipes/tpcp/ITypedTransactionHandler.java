@@ -0,0 +1,22 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+/**
+ * Handler for executing transactions whose queries are decoded by the group's {@link QueryCodec}.
+ * @param <T> query type, the type the codec decodes to
+ */
+public interface ITypedTransactionHandler<T> {
+    /**
+     * Callback method for transaction execution.
+     * @param transactionID transaction unique identifier
+     * @param query query to be executed, as decoded by the group's codec
+     * @return true to commit, false to abort
+     */
+    public boolean execute(long transactionID, T query);
+
+    /**
+     * Callback method for transaction result.
+     * @param transactionID transaction unique identifier
+     * @param result true to final commit, false to abort
+     */
+    public void result(long transactionID, boolean result);
+}
@@ -1,5 +1,6 @@
 package org.apache.zookeeper.recipes.tpcp;
 
+import java.io.IOException;
 import java.util.List;
 
 import org.apache.zookeeper.WatchedEvent;
@@ -11,9 +12,15 @@ import org.apache.zookeeper.Watcher.Event.EventType;
  *
  */
 class ParticipantTransaction extends BaseTransaction {
-    private ITransactionHandler handler;
+    private ITypedTransactionHandler<Object> handler;
 
-    public ParticipantTransaction(String zNodeTransaction, GroupMember participant, ITransactionHandler handler) throws InterruptedException {
+    /** place of our result among those of our ordering key, null when unordered */
+    private volatile Object resultReservation;
+
+    /** we only voted ABORTED on a transaction we couldn't read, the handler never saw it */
+    private volatile boolean refused;
+
+    public ParticipantTransaction(String zNodeTransaction, GroupMember participant, ITypedTransactionHandler<Object> handler) {
         super(zNodeTransaction, participant);
         this.handler = handler;
     }
@@ -46,6 +53,11 @@ class ParticipantTransaction extends BaseTransaction {
     }
 
     private void analyseCoordinatorDecision(String decision) {
+        // we may have finished already, e.g. a read and a watch both saw the decision
+        if (isFinished()) {
+            return;
+        }
+
         TransactionState coordinatorState = TransactionState.parse(decision);
 
         if (coordinatorState == TransactionState.COMMITTED) {
@@ -60,24 +72,29 @@ class ParticipantTransaction extends BaseTransaction {
             return;
         }
 
+        // the reaper leaves the transaction alone until it's written, no need to wait for it
+        recordDecision(null);
+
         // we have finished
         finish();
     }
 
-    private void waitForCoordinatorDecision() throws InterruptedException {
+    private void waitForCoordinatorDecision() {
         String coordinatorNodePath = getPath(getCoordinatorID());
-        String coordData;
 
         // gets coordinator decision
         // TODO improve left alone watcher (when we know coordinator have decided)
-        coordData = readParticipantNode(coordinatorNodePath, true);
-
-        if (coordData != null) {
-            analyseCoordinatorDecision(coordData);
-        }
-        //else
-        // coordinator haven't created his node yet, we should wait
-
+        // the coordinator creates its node right after the transaction znode, we may be early
+        readParticipantNode(coordinatorNodePath, true, true, new Continuation<String>() {
+            @Override
+            public void proceed(String coordData) {
+                if (coordData != null) {
+                    analyseCoordinatorDecision(coordData);
+                }
+                //else
+                // coordinator haven't created his node yet, our watch will tell us when he does
+            }
+        });
     }
 
     @Override
@@ -87,12 +104,7 @@ class ParticipantTransaction extends BaseTransaction {
 
         // finally coordinator created his node or we decided
         if (etype == EventType.NodeDataChanged || etype == EventType.NodeCreated) {
-            try {
-                waitForCoordinatorDecision();
-            }
-            catch (InterruptedException e) {
-                // TODO do something - this is critical!
-            }
+            waitForCoordinatorDecision();
         }
         else if (etype == EventType.NodeDeleted) {
             // damn, coordinator died, we should abort
@@ -102,24 +114,98 @@ class ParticipantTransaction extends BaseTransaction {
 
     /**
      * Participate on transaction
-     * @throws InterruptedException
      */
-    private void participate() throws InterruptedException {
+    private void participate() {
         if (!canParticipate())
             return;
 
-        createParticipantNode();
+        createParticipantNode(new Continuation<Boolean>() {
+            @Override
+            public void proceed(Boolean created) {
+                // without our node we have no way to vote
+                if (created) {
+                    // the handler may take its time, keep it off the zk event thread
+                    me.getGroup().prepare(ParticipantTransaction.this);
+                }
+            }
+        });
+    }
 
+    /**
+     * Votes ABORTED on a transaction we can't read. The coordinator may be
+     * waiting for every member's vote, a silent member would hold it forever.
+     * If we weren't a participant, our vote counts for nothing. The handler
+     * gets no result for it.
+     */
+    private void refuse() {
+        refused = true;
+
+        createParticipantNode(new Continuation<Boolean>() {
+            @Override
+            public void proceed(Boolean created) {
+                if (created) {
+                    vote(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the handler and casts our vote. The queries of a batch run in
+     * order under the same transaction ID, the first one refused aborts them all.
+     */
+    void execute() {
+        boolean execute = true;
+
+        try {
+            long id = getID();
+
+            for (Object query : getQueries()) {
+                if (!handler.execute(id, query)) {
+                    execute = false;
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            // we can't run what we can't read
+            System.out.println("Could not decode the query of transaction '" + zNodePath + "': " + e.getMessage());
+            execute = false;
+        }
+        catch (RuntimeException e) {
+            // the transaction (and those after it on its ordering key) would wait on our vote forever
+            System.out.println("Handler failed on transaction '" + zNodePath + "', aborting it: " + e);
+            execute = false;
+        }
+
+        vote(execute);
+    }
+
+    /**
+     * Get this transaction's ID
+     * @return
+     */
+    long getID() {
+        return BaseTransaction.getTransactionID(zNodePath);
+    }
+
+    /**
+     * Casts our vote, then waits for the coordinator's decision if we commit
+     * @param execute true to commit, false to abort
+     */
+    void vote(boolean execute) {
         // if user commits
-        if (handler.execute(BaseTransaction.getTransactionID(zNodePath), getQuery())) {
+        if (execute) {
             // pre-commits a transaction
             try {
-                commit(true);
+                commit(true, null);
 
+                // zk serves our requests in order, so there is no need to wait for the vote to be written
                 waitForCoordinatorDecision();
             }
             catch(Exception e) {
-                // TODO handle
+                // we could not vote, don't keep the results behind ours waiting
+                abandon();
             }
 
             // TODO set timeout for coordinator (avoid coordinator "online crash") - this will be trick
@@ -127,35 +213,80 @@ class ParticipantTransaction extends BaseTransaction {
         }
         else {
             try {
-                abort();
-
-                // we have finished
-                finish();
+                abort(new Continuation<Boolean>() {
+                    @Override
+                    public void proceed(Boolean written) {
+                        // we have finished
+                        finish();
+                    }
+                });
             }
             catch(Exception e) {
-                // TODO handle
+                abandon();
             }
 
             // when we abort, we can just ignore everything else
         }
     }
 
+    /**
+     * Makes our result wait for those reserved before it on our ordering key
+     * @param reservation
+     */
+    void setResultReservation(Object reservation) {
+        this.resultReservation = reservation;
+    }
+
+    /**
+     * Ends the transaction as aborted here if nothing else ended it, so that
+     * its result (and its place among those of its ordering key) is given
+     */
+    private void abandon() {
+        if (isFinished()) {
+            return;
+        }
+
+        state = TransactionState.ABORTED;
+        finish();
+    }
+
     private void finish() {
-        long id = BaseTransaction.getTransactionID(zNodePath);
+        final long id = BaseTransaction.getTransactionID(zNodePath);
+        final boolean committed = state == TransactionState.COMMITTED;
+        final ITypedTransactionHandler<Object> handler = this.handler;
+        TransactionGroup group = me.getGroup();
 
         decisionReached();
+        this.handler = null;
+
+        if (refused) {
+            // no result for what the handler never executed, nor did we take part in it
+            return;
+        }
 
-        handler.result(id, state == TransactionState.COMMITTED);
-        handler = null;
+        statistics.transactionParticipated();
+
+        // user code, keep it off the zk event thread as well
+        group.deliverResult(resultReservation, new Runnable() {
+            @Override
+            public void run() {
+                handler.result(id, committed);
+            }
+        });
     }
 
     @Override
-    public void run() {
-        try {
-            participate();
-        }
-        catch (InterruptedException e) {
-            // TODO handle this
-        }
+    void start() {
+        readZnode(new Continuation<Boolean>() {
+            @Override
+            public void proceed(Boolean read) {
+                if (read) {
+                    participate();
+                }
+                else if (isUnreadable()) {
+                    refuse();
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,26 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts transaction queries to and from the bytes stored in the transaction znode.
+ * @param <T> query type
+ */
+public interface QueryCodec<T> {
+    /**
+     * Encodes a query.
+     * @param query query to encode, may be null
+     * @return buffer whose remaining bytes are the encoded query (null for a null query)
+     * @throws IOException if the query can't be encoded
+     */
+    public ByteBuffer encode(T query) throws IOException;
+
+    /**
+     * Decodes a query.
+     * @param data read-only view over the encoded query bytes (null for a null query)
+     * @return the query
+     * @throws IOException if data is not a valid encoded query
+     */
+    public T decode(ByteBuffer data) throws IOException;
+}
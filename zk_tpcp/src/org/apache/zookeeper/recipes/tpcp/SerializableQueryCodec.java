@@ -0,0 +1,81 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Query codec using Java serialization. Used when the group is not given any other codec.
+ *
+ */
+public class SerializableQueryCodec implements QueryCodec<Serializable> {
+    @Override
+    public ByteBuffer encode(Serializable query) throws IOException {
+        if (query == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream binaryStream = new ByteArrayOutputStream();
+        ObjectOutputStream s = new ObjectOutputStream(binaryStream);
+        s.writeObject(query);
+        s.close();
+
+        return ByteBuffer.wrap(binaryStream.toByteArray());
+    }
+
+    @Override
+    public Serializable decode(ByteBuffer data) throws IOException {
+        if (data == null) {
+            return null;
+        }
+
+        ObjectInputStream s = new ObjectInputStream(new BufferInputStream(data.duplicate()));
+
+        try {
+            return (Serializable) s.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw (IOException) new IOException("Unknown query class: " + e.getMessage()).initCause(e);
+        }
+        finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Reads straight from a buffer, read-only views included, without copying it first
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
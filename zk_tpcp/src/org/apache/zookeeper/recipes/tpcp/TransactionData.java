@@ -1,15 +1,38 @@
 package org.apache.zookeeper.recipes.tpcp;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Wrapper to transaction data
  *
+ * Transaction znodes hold this binary format (all numbers big-endian):
+ * <pre>
+ * byte    magic (0x54)
+ * byte    format version (1, 2 for a batch)
+ * byte    flags: 0x01 has coordinator, 0x02 has participant list, 0x04 ids are text,
+ *         0x08 batch
+ * id      coordinator ID, if present
+ * int     participant count, if present, followed by that many ids
+ * int     query count, for a batch only, followed by that many queries as below
+ * int     query length, -1 for a null query, followed by the query bytes
+ * </pre>
+ * A batch carries the queries of a group commit (see {@link TransactionGroup#setGroupCommit}),
+ * its own version keeps older members from taking it for a single query.
+ * Member IDs are session ids, so they're written as a long each; should some ID
+ * not be a number, every ID is written as text instead (short length + UTF-8 bytes).
+ * The query bytes are whatever the group's {@link QueryCodec} produced; they are
+ * kept encoded here and only decoded when asked for.
+ *
+ * Znodes written before this format hold a Java serialized TransactionData,
+ * which is why this class is still Serializable and keeps its fields as they were.
  */
 class TransactionData implements Serializable {
     /**
@@ -17,24 +40,95 @@ class TransactionData implements Serializable {
      */
     private static final long serialVersionUID = 1L;
 
+    private static final byte MAGIC = 0x54;
+    private static final byte VERSION = 1;
+    private static final byte BATCH_VERSION = 2;
+
+    private static final byte FLAG_COORDINATOR = 0x01;
+    private static final byte FLAG_PARTICIPANTS = 0x02;
+    private static final byte FLAG_TEXT_IDS = 0x04;
+    private static final byte FLAG_BATCH = 0x08;
+
+    /** first byte of every Java serialization stream (0xACED) */
+    private static final byte JAVA_SERIALIZATION_MAGIC = (byte) 0xAC;
+
+    /** only set on data read from the old serialized format */
     private Serializable query;
     private String coordinatorID;
     private List<String> participants;
 
-    // TODO convert participants list to long instead of string to save space
+    /** encoded query */
+    private transient ByteBuffer queryData;
 
-    public TransactionData(Serializable query, String coordinatorID, List<String> participants) {
-        this.query = query;
+    /** encoded queries of a batch, null for a single query */
+    private transient List<ByteBuffer> batchData;
+
+    /**
+     * @param queryData encoded query (its remaining bytes), null for no query
+     * @param coordinatorID
+     * @param participants
+     */
+    public TransactionData(ByteBuffer queryData, String coordinatorID, List<String> participants) {
+        this.queryData = queryData;
         this.coordinatorID = coordinatorID;
         this.participants = participants;
     }
 
     /**
-     * Get query data.
+     * Creates the data of a batch
+     * @param batchData encoded queries (their remaining bytes), null items for null queries
+     * @param coordinatorID
+     * @param participants
      * @return
      */
-    public Serializable getQuery() {
-        return query;
+    public static TransactionData batch(List<ByteBuffer> batchData, String coordinatorID, List<String> participants) {
+        TransactionData data = new TransactionData(null, coordinatorID, participants);
+        data.batchData = batchData;
+
+        return data;
+    }
+
+    /**
+     * Get if this is a batch of queries
+     * @return
+     */
+    public boolean isBatch() {
+        return batchData != null;
+    }
+
+    /**
+     * Get the queries, decoded: those of a batch in order, or the only one.
+     * @param codec the codec the queries were encoded with
+     * @return
+     * @throws IOException if a query can't be decoded
+     */
+    public <T> List<T> getQueries(QueryCodec<T> codec) throws IOException {
+        if (batchData == null) {
+            return Collections.singletonList(getQuery(codec));
+        }
+
+        List<T> queries = new ArrayList<T>(batchData.size());
+        for (ByteBuffer q : batchData) {
+            queries.add(codec.decode(q == null ? null : q.duplicate()));
+        }
+
+        return queries;
+    }
+
+    /**
+     * Get query data, decoded.
+     * @param codec the codec the query was encoded with
+     * @return
+     * @throws IOException if the query can't be decoded
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getQuery(QueryCodec<T> codec) throws IOException {
+        if (query != null) {
+            // old format, only Serializable queries were possible
+            return (T) query;
+        }
+
+        return codec.decode(queryData == null ? null : queryData.duplicate());
     }
 
     /**
@@ -58,45 +152,245 @@ class TransactionData implements Serializable {
      * @return
      */
     public byte[] toByteArray() {
-        byte[] array = null;
+        boolean textIds = !numericIds();
 
-        try {
-            java.io.ByteArrayOutputStream binaryStream = new ByteArrayOutputStream();
-            ObjectOutputStream s = new ObjectOutputStream(binaryStream);
-            s.writeObject(this);
-            s.flush();
-            array = binaryStream.toByteArray();
-            binaryStream.close();
+        byte flags = 0;
+        int size = 3;
+
+        if (batchData != null) {
+            flags |= FLAG_BATCH;
+            size += 4;
+            for (ByteBuffer q : batchData) {
+                size += querySize(q);
+            }
         }
-        catch (IOException e) {
-            // TODO handle this
+        else {
+            size += querySize(queryData);
+        }
+
+        if (coordinatorID != null) {
+            flags |= FLAG_COORDINATOR;
+            size += idSize(coordinatorID, textIds);
+        }
+
+        if (participants != null) {
+            flags |= FLAG_PARTICIPANTS;
+            size += 4;
+            for (String p : participants) {
+                size += idSize(p, textIds);
+            }
+        }
+
+        if (textIds) {
+            flags |= FLAG_TEXT_IDS;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MAGIC);
+        out.put(batchData != null ? BATCH_VERSION : VERSION);
+        out.put(flags);
+
+        if (coordinatorID != null) {
+            putID(out, coordinatorID, textIds);
+        }
+
+        if (participants != null) {
+            out.putInt(participants.size());
+            for (String p : participants) {
+                putID(out, p, textIds);
+            }
+        }
+
+        if (batchData != null) {
+            out.putInt(batchData.size());
+            for (ByteBuffer q : batchData) {
+                putQuery(out, q);
+            }
+        }
+        else {
+            putQuery(out, queryData);
         }
 
-        return array;
+        return out.array();
     }
 
     /**
      * Convert a binary array into an transaction data object
-     * @param array
-     * @return
+     * @param array znode data
+     * @return the data or null if it can't be read
      */
     public static TransactionData readByteArray(byte[] array) {
         TransactionData data = null;
 
         try {
-            java.io.ByteArrayInputStream binaryStream = new java.io.ByteArrayInputStream(array);
-            ObjectInputStream s = new ObjectInputStream(binaryStream);
-            data = (TransactionData)s.readObject();
-            s.close();
-            binaryStream.close();
+            if (array.length > 0 && array[0] == JAVA_SERIALIZATION_MAGIC) {
+                data = readSerialized(array);
+            }
+            else {
+                data = readBinary(array);
+            }
         }
         catch (IOException e) {
             // TODO handle this
         }
-        catch (ClassNotFoundException e) {
+        catch (RuntimeException e) {
+            // truncated or garbled data
             // TODO handle this
         }
 
         return data;
     }
+
+    private static TransactionData readBinary(byte[] array) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(array);
+
+        if (in.get() != MAGIC) {
+            throw new IOException("Not a transaction znode");
+        }
+
+        byte version = in.get();
+        if (version != VERSION && version != BATCH_VERSION) {
+            throw new IOException("Unknown transaction data version " + version);
+        }
+
+        byte flags = in.get();
+        boolean textIds = (flags & FLAG_TEXT_IDS) != 0;
+
+        String coordinatorID = null;
+        if ((flags & FLAG_COORDINATOR) != 0) {
+            coordinatorID = getID(in, textIds);
+        }
+
+        List<String> participants = null;
+        if ((flags & FLAG_PARTICIPANTS) != 0) {
+            int count = in.getInt();
+
+            participants = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                participants.add(getID(in, textIds));
+            }
+        }
+
+        if ((flags & FLAG_BATCH) != 0) {
+            int count = in.getInt();
+
+            List<ByteBuffer> batchData = new ArrayList<ByteBuffer>(count);
+            for (int i = 0; i < count; i++) {
+                batchData.add(getQuery(in));
+            }
+
+            return batch(batchData, coordinatorID, participants);
+        }
+
+        return new TransactionData(getQuery(in), coordinatorID, participants);
+    }
+
+    private static int querySize(ByteBuffer query) {
+        return 4 + (query == null ? 0 : query.remaining());
+    }
+
+    private static void putQuery(ByteBuffer out, ByteBuffer query) {
+        if (query == null) {
+            out.putInt(-1);
+        }
+        else {
+            out.putInt(query.remaining());
+            out.put(query.duplicate());
+        }
+    }
+
+    private static ByteBuffer getQuery(ByteBuffer in) throws IOException {
+        int queryLength = in.getInt();
+        if (queryLength < 0) {
+            return null;
+        }
+        if (queryLength > in.remaining()) {
+            throw new IOException("Truncated transaction data");
+        }
+
+        // a view, not a copy
+        ByteBuffer query = ByteBuffer.wrap(in.array(), in.position(), queryLength).slice().asReadOnlyBuffer();
+        in.position(in.position() + queryLength);
+
+        return query;
+    }
+
+    private static TransactionData readSerialized(byte[] array) throws IOException {
+        ObjectInputStream s = new ObjectInputStream(new ByteArrayInputStream(array));
+
+        try {
+            return (TransactionData) s.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw (IOException) new IOException(e.getMessage()).initCause(e);
+        }
+        finally {
+            s.close();
+        }
+    }
+
+    /**
+     * True if every ID can be written as a long and read back as the same string
+     */
+    private boolean numericIds() {
+        if (coordinatorID != null && !isNumeric(coordinatorID)) {
+            return false;
+        }
+
+        if (participants != null) {
+            for (String p : participants) {
+                if (!isNumeric(p)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isNumeric(String id) {
+        try {
+            return Long.toString(Long.parseLong(id)).equals(id);
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static int idSize(String id, boolean text) {
+        return text ? 2 + utf8(id).length : 8;
+    }
+
+    private static void putID(ByteBuffer out, String id, boolean text) {
+        if (text) {
+            byte[] b = utf8(id);
+            out.putShort((short) b.length);
+            out.put(b);
+        }
+        else {
+            out.putLong(Long.parseLong(id));
+        }
+    }
+
+    private static String getID(ByteBuffer in, boolean text) throws UnsupportedEncodingException {
+        if (text) {
+            int length = in.getShort() & 0xffff;
+            String id = new String(in.array(), in.arrayOffset() + in.position(), length, "UTF-8");
+            in.position(in.position() + length);
+            return id;
+        }
+        else {
+            return Long.toString(in.getLong());
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            // every JVM has UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
 }
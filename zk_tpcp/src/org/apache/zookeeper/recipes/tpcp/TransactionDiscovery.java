@@ -0,0 +1,119 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Finds the transactions created since the last look at the transaction znode's children.
+ *
+ * Finished transaction znodes stay around, so the children list only grows. Instead of
+ * sorting and parsing the whole list on every change, we keep a high-water mark:
+ * <ul>
+ * <li>zookeeper names a sequential node after its parent's cversion, which goes up by one
+ * on every child created or deleted. If the children count went up as much as cversion did,
+ * nothing was deleted and the new names are exactly those numbered from the last cversion
+ * we saw to the current one: we just name them, the children list isn't even looked at.</li>
+ * <li>otherwise (something was deleted) we pick names above the newest one seen. Sequential
+ * names have a fixed width counter, so comparing names is comparing IDs, nothing is parsed
+ * or sorted but the new names.</li>
+ * </ul>
+ *
+ * Not thread safe, callers must sync.
+ */
+class TransactionDiscovery {
+    private String lastTransactionName;
+    private long lastTransactionID;
+
+    /** children stat as of the last look, cversion is -1 when unknown */
+    private int lastCversion;
+    private int lastNumChildren;
+
+    public TransactionDiscovery() {
+        this.lastTransactionName = null;
+        this.lastTransactionID = -1;
+        this.lastCversion = -1;
+        this.lastNumChildren = 0;
+    }
+
+    /**
+     * Get transactions newer than the high-water mark and raise it.
+     * @param transactions current children of the transaction znode, in any order
+     * @param stat transaction znode stat read along with the children, null if unknown
+     * @return the new transactions, oldest first
+     */
+    public List<String> discover(List<String> transactions, Stat stat) {
+        List<String> found;
+
+        if (onlyCreated(stat)) {
+            found = new ArrayList<String>(stat.getCversion() - lastCversion);
+
+            for (int sequence = lastCversion; sequence < stat.getCversion(); sequence++) {
+                found.add(BaseTransaction.transactionNodePrefix + String.format("%010d", sequence));
+            }
+        }
+        else {
+            found = new ArrayList<String>();
+
+            for (String t : transactions) {
+                if (isNewer(t)) {
+                    found.add(t);
+                }
+            }
+
+            // usually just a handful
+            BaseTransaction.sortTransactionList(found);
+        }
+
+        if (stat != null) {
+            lastCversion = stat.getCversion();
+            lastNumChildren = stat.getNumChildren();
+        }
+        else {
+            lastCversion = -1;
+        }
+
+        if (!found.isEmpty()) {
+            lastTransactionName = found.get(found.size() - 1);
+            lastTransactionID = BaseTransaction.getTransactionID(lastTransactionName);
+        }
+
+        return found;
+    }
+
+    /**
+     * Raise the high-water mark past every given transaction, so they are never discovered.
+     * @param transactions transaction znode names
+     * @param stat transaction znode stat read along with the children, null if unknown
+     */
+    public void skip(List<String> transactions, Stat stat) {
+        discover(transactions, stat);
+    }
+
+    /**
+     * True if children were only created (none deleted) since the last look
+     */
+    private boolean onlyCreated(Stat stat) {
+        if (stat == null || lastCversion < 0) {
+            return false;
+        }
+
+        int changes = stat.getCversion() - lastCversion;
+
+        return changes >= 0 && changes == stat.getNumChildren() - lastNumChildren;
+    }
+
+    private boolean isNewer(String transaction) {
+        if (lastTransactionName == null) {
+            return true;
+        }
+
+        // same width, same prefix: names sort like their IDs
+        if (transaction.length() == lastTransactionName.length()) {
+            return transaction.compareTo(lastTransactionName) > 0;
+        }
+
+        return BaseTransaction.getTransactionID(transaction) > lastTransactionID;
+    }
+}
@@ -0,0 +1,317 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work of a group member which may block (user handlers) on a bounded
+ * number of threads.
+ *
+ * Work handed over by the zk event thread is never refused nor waited for, the
+ * bound on queued work is kept by {@link #awaitCapacity()} instead, which
+ * BeginTransaction calls before adding more. Work given an ordering key runs one
+ * at a time per key, in the order it was handed over; results reserve their place
+ * in that order beforehand (see {@link #reserve}), since decisions come in any order.
+ * A reservation still open after reservationTimeout stops holding back the results
+ * behind it, so a transaction which never ends doesn't stall its key for good.
+ */
+class TransactionExecutor {
+    private final ThreadPoolExecutor workers;
+    private int queueCapacity;
+
+    /** tasks handed over and not started yet, guarded by this */
+    private int queued;
+
+    /** ordering key -> its tasks, guarded by itself */
+    private final Map<Object, KeyQueue> keyQueues;
+
+    private final long reservationTimeoutNanos;
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * @param threads most worker threads
+     * @param queueCapacity queued tasks above which BeginTransaction waits
+     * @param reservationTimeout how long a result reservation may hold back
+     * those behind it
+     * @param unit unit of reservationTimeout
+     */
+    public TransactionExecutor(int threads, int queueCapacity, long reservationTimeout, TimeUnit unit) {
+        // the queue is unbounded, the capacity is kept by the callers waiting
+        this.workers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>());
+        this.workers.allowCoreThreadTimeOut(true);
+        this.queueCapacity = queueCapacity;
+        this.keyQueues = new HashMap<Object, KeyQueue>();
+        this.reservationTimeoutNanos = unit.toNanos(reservationTimeout);
+
+        // goes away when idle, like the workers
+        this.timer = new ScheduledThreadPoolExecutor(1);
+        this.timer.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        this.timer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Changes the bounds, queued tasks stay
+     * @param threads most worker threads
+     * @param queueCapacity queued tasks above which BeginTransaction waits
+     */
+    public synchronized void setBounds(int threads, int queueCapacity) {
+        if (threads > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(threads);
+            workers.setCorePoolSize(threads);
+        }
+        else {
+            workers.setCorePoolSize(threads);
+            workers.setMaximumPoolSize(threads);
+        }
+
+        this.queueCapacity = queueCapacity;
+        notifyAll();
+    }
+
+    /**
+     * Runs a task on any worker
+     * @param task
+     */
+    public void execute(Runnable task) {
+        execute(null, task);
+    }
+
+    /**
+     * Runs a task after the tasks handed over before it with the same key
+     * @param key ordering key, null for none
+     * @param task
+     */
+    public void execute(Object key, final Runnable task) {
+        synchronized (this) {
+            queued++;
+        }
+
+        if (key == null) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started();
+                    task.run();
+                }
+            });
+            return;
+        }
+
+        synchronized (keyQueues) {
+            KeyQueue q = keyQueues.get(key);
+
+            if (q == null) {
+                q = new KeyQueue(key);
+                keyQueues.put(key, q);
+            }
+
+            q.add(task);
+        }
+    }
+
+    /**
+     * Reserves the place of a result among the tasks of a key
+     * @param key ordering key
+     * @return the place, to be given to {@link #complete}
+     */
+    public Object reserve(Object key) {
+        synchronized (keyQueues) {
+            KeyQueue q = keyQueues.get(key);
+
+            if (q == null) {
+                q = new KeyQueue(key);
+                keyQueues.put(key, q);
+            }
+
+            return q.reserve();
+        }
+    }
+
+    /**
+     * Runs a result once every result reserved before it on its key has run
+     * @param reservation as returned by {@link #reserve}
+     * @param task
+     */
+    public void complete(Object reservation, Runnable task) {
+        Reservation r = (Reservation) reservation;
+
+        synchronized (keyQueues) {
+            if (r.done) {
+                // it timed out, run it out of order rather than never
+                execute(task);
+                return;
+            }
+
+            synchronized (this) {
+                queued++;
+            }
+
+            r.task = task;
+            r.done = true;
+            r.queue.completed();
+        }
+    }
+
+    /**
+     * Waits until fewer tasks than the queue capacity are queued
+     * @throws InterruptedException
+     */
+    public synchronized void awaitCapacity() throws InterruptedException {
+        while (queued >= queueCapacity) {
+            wait();
+        }
+    }
+
+    /**
+     * Get how many tasks are queued
+     * @return
+     */
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    private synchronized void started() {
+        if (queued-- == queueCapacity) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Place of a result on a key
+     */
+    private static class Reservation {
+        final KeyQueue queue;
+        final long reservedAt = System.nanoTime();
+        Runnable task;
+        /** completed or timed out */
+        boolean done;
+
+        Reservation(KeyQueue queue) {
+            this.queue = queue;
+        }
+    }
+
+    /**
+     * The tasks of one key, run one at a time. Dropped once it has nothing left.
+     * **** ATENTION: Call its methods only when in sync keyQueues ****
+     */
+    private class KeyQueue implements Runnable {
+        private final Object key;
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private final Queue<Reservation> reservations = new ArrayDeque<Reservation>();
+        private boolean running;
+        private boolean expiryScheduled;
+
+        KeyQueue(Object key) {
+            this.key = key;
+        }
+
+        void add(Runnable task) {
+            tasks.add(task);
+
+            if (!running) {
+                running = true;
+                workers.execute(this);
+            }
+        }
+
+        Reservation reserve() {
+            Reservation r = new Reservation(this);
+            reservations.add(r);
+
+            return r;
+        }
+
+        /**
+         * A result got its task (or timed out), those ready from the head on may run
+         */
+        void completed() {
+            while (!reservations.isEmpty() && reservations.peek().done) {
+                Runnable task = reservations.poll().task;
+
+                if (task != null) {
+                    add(task);
+                }
+            }
+
+            if (reservations.isEmpty()) {
+                dropIfIdle();
+            }
+            else if (!expiryScheduled && reservations.size() > 1) {
+                // results wait behind an open reservation, don't let them wait forever
+                expiryScheduled = true;
+
+                long delay = reservations.peek().reservedAt + reservationTimeoutNanos - System.nanoTime();
+
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (keyQueues) {
+                            expiryScheduled = false;
+                            expire();
+                        }
+                    }
+                }, Math.max(0L, delay), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Stops waiting on open reservations at the head which are too old
+         */
+        private void expire() {
+            long now = System.nanoTime();
+
+            while (!reservations.isEmpty() && !reservations.peek().done
+                   && now - reservations.peek().reservedAt >= reservationTimeoutNanos) {
+                System.out.println("A result on ordering key '" + key + "' took too long, not waiting for it anymore.");
+                reservations.poll().done = true;
+            }
+
+            completed();
+        }
+
+        private void dropIfIdle() {
+            if (!running && tasks.isEmpty() && reservations.isEmpty()) {
+                keyQueues.remove(key);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+
+            synchronized (keyQueues) {
+                task = tasks.poll();
+            }
+
+            started();
+
+            try {
+                task.run();
+            }
+            finally {
+                next();
+            }
+        }
+
+        private void next() {
+            synchronized (keyQueues) {
+                if (!tasks.isEmpty()) {
+                    // one task per turn, other keys get the workers too
+                    workers.execute(this);
+                    return;
+                }
+
+                running = false;
+                dropIfIdle();
+            }
+        }
+    }
+}
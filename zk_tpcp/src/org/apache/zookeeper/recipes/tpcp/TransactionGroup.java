@@ -1,13 +1,20 @@
 package org.apache.zookeeper.recipes.tpcp;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
@@ -17,6 +24,7 @@ import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.ZooKeeper.States;
+import org.apache.zookeeper.data.Stat;
 
 // TODO set watcher on transaction node and call participate
 // TODO make facade class for znode operations
@@ -30,19 +38,31 @@ import org.apache.zookeeper.ZooKeeper.States;
 public final class TransactionGroup {
     static final String groupZnode = "g";
     static final String transactionZnode = "t";
+    static final String reaperZnode = "r";
+    static final int defaultThreads = 16;
+    static final int defaultQueueCapacity = 1024;
+    static final long orderedResultTimeoutMillis = 60000L;
 
     private String groupPath;
     private GroupMember me;
     private ZooKeeper zkClient;
     private TransactionGroupWatcher watcher;
     private Hashtable<String, GroupMember> members;
-    private ITransactionHandler handler;
-    private boolean disposed;
-    private long lastTransactionID;
+    private ITypedTransactionHandler<Object> handler;
+    private volatile boolean disposed;
+    private TransactionDiscovery discovery;
     private Object transactionSyncLock;
-    private ExecutorService threadPool;
-
-    private TransactionGroup(String groupPath, ZooKeeper zkClient, ITransactionHandler handler) {
+    private TransactionExecutor executor;
+    private ExecutorService eventStage;
+    private List<CoordinatorTransaction> ongoingTransactions;
+    private QueryCodec<Object> queryCodec;
+    private TransactionStatistics statistics;
+    private volatile GroupCommit groupCommit;
+    private BatchPreparer batchPreparer;
+    private volatile IOrderingKey<Object> orderingKey;
+
+    private TransactionGroup(String groupPath, ZooKeeper zkClient,
+                             QueryCodec<Object> queryCodec, ITypedTransactionHandler<Object> handler) {
         this.groupPath = groupPath;
         this.zkClient = zkClient;
         this.watcher = new TransactionGroupWatcher(this);
@@ -50,9 +70,18 @@ public final class TransactionGroup {
         this.handler = handler;
         this.members = new Hashtable<String, GroupMember>();
         this.disposed = false;
-        this.lastTransactionID = -1;
+        this.discovery = new TransactionDiscovery();
         this.transactionSyncLock = new Object();
-        this.threadPool = java.util.concurrent.Executors.newCachedThreadPool();
+        this.executor = new TransactionExecutor(defaultThreads, defaultQueueCapacity,
+                                                orderedResultTimeoutMillis, TimeUnit.MILLISECONDS);
+        this.eventStage = newEventStage();
+        this.ongoingTransactions = new ArrayList<CoordinatorTransaction>();
+        this.queryCodec = queryCodec;
+        this.statistics = new TransactionStatistics();
+
+        if (handler instanceof IBatchTransactionHandler) {
+            this.batchPreparer = new BatchPreparer(this, (IBatchTransactionHandler<Object>) handler);
+        }
     }
 
     /**
@@ -124,6 +153,21 @@ public final class TransactionGroup {
     private void join() throws GroupException, InterruptedException {
         createGroup();
 
+        // transactions begun before we join can't have us as a participant, don't look at them
+        try {
+            Stat stat = new Stat();
+            List<String> history = zkClient.getChildren(groupPath + "/" + transactionZnode, false, stat);
+
+            synchronized (this.transactionSyncLock) {
+                discovery.skip(history, stat);
+            }
+        }
+        catch (KeeperException e) {
+            // TODO: handle this
+
+            // we'll just look at every transaction
+        }
+
         // now that znode exists, let's create our znode member
         try {
             // create our znode under group
@@ -168,6 +212,8 @@ public final class TransactionGroup {
             return;
         }
 
+        List<String> membersLeft = new ArrayList<String>();
+
         synchronized (this.members) {
             // TODO make this not so stupiditly slow
 
@@ -180,6 +226,7 @@ public final class TransactionGroup {
                 // if we have some members who isn't on recent member list, we should remove it
                 if (!membersName.contains(m)) {
                     members.remove(m);
+                    membersLeft.add(m);
                 }
             }
 
@@ -191,75 +238,197 @@ public final class TransactionGroup {
                 }
             }
         }
+
+        // a member which left can't vote anymore, transactions waiting on it must abort
+        for (String m : membersLeft) {
+            for (CoordinatorTransaction ct : getOngoingTransactions()) {
+                ct.participantLeft(m);
+            }
+        }
     }
 
     /**
      * Update transactions
-     * @throws InterruptedException
      */
-    private void updateTransactions() throws InterruptedException {
+    private void updateTransactions() {
         // avoid updating transaction after we left group
         if (disposed) {
             return;
         }
 
-        List<String> transactions = null;
-        String fullPathPrefix = groupPath + "/" + transactionZnode;
+        final String fullPathPrefix = groupPath + "/" + transactionZnode;
 
-        try {
-            transactions = zkClient.getChildren(fullPathPrefix, watcher);
-        }
-        catch (KeeperException e) {
-            // TODO: handle this
+        zkClient.getChildren(fullPathPrefix, watcher, new Children2Callback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, final List<String> transactions, final Stat stat) {
+                if (rc != Code.OK.intValue()) {
+                    // TODO: handle this
 
-            // actually we are ignoring transactions when we got an error and those should be aborted by timeout (if we must participate)
-            return;
-        }
+                    // actually we are ignoring transactions when we got an error and those should be aborted by timeout (if we must participate)
+                    return;
+                }
 
-        // sort transactions
-        BaseTransaction.sortTransactionList(transactions);
-        fullPathPrefix += "/";
+                long start = System.nanoTime();
 
-        synchronized (this.transactionSyncLock) {
-            long tid = -1;
-
-            // for each transaction
-            for (String t : transactions) {
-                tid = BaseTransaction.getTransactionID(t);
+                onEventStage(new Runnable() {
+                    @Override
+                    public void run() {
+                        transactionsChanged(fullPathPrefix + "/", transactions, stat);
+                    }
+                });
 
-                // we try to avoid double reads
-                if (tid > lastTransactionID) {
-                    // we can't stall here as we're holding a lock
-                    participate(fullPathPrefix + t);
-                }
+                statistics.eventThreadDwell(System.nanoTime() - start);
             }
+        }, null);
+    }
+
+    /**
+     * Participate on new transactions
+     * @param fullPathPrefix transaction znode path prefix
+     * @param transactions transaction znode names
+     * @param stat transaction znode stat
+     */
+    private void transactionsChanged(String fullPathPrefix, List<String> transactions, Stat stat) {
+        // we may have left while reading
+        if (disposed) {
+            return;
+        }
 
-            // avoid setting transactionID every loop iteration
-            if (tid > lastTransactionID) {
-                lastTransactionID = tid;
+        synchronized (this.transactionSyncLock) {
+            // only those we haven't seen yet, oldest first
+            for (String t : discovery.discover(transactions, stat)) {
+                // this does not block, the transaction goes on by itself
+                participate(fullPathPrefix + t);
             }
         }
     }
 
     /**
      * Participate on some ongoing transaction.
-     * @throws InterruptedException
      */
-    private void participate(String transactionZnode) throws InterruptedException {
-        // TODO create waiting transaction for execution list to avoid stalling (see updateTransactions)
+    private void participate(String transactionZnode) {
         ParticipantTransaction pt = new ParticipantTransaction(transactionZnode, me, handler);
 
-        queueTransaction(pt);
+        pt.start();
     }
 
     /**
-     * Queue a transaction for execution as soon as possible
+     * Runs the handler on a transaction we take part in and votes, off the zk event
+     * thread: alone, or with the others pending for a batch handler. Calls come on
+     * the zk event thread in transaction ID order (we discover transactions oldest
+     * first and zk answers our requests in order), which is the order kept per key.
+     * @param pt
+     */
+    void prepare(final ParticipantTransaction pt) {
+        Object key = getOrderingKey(pt);
+
+        if (key != null) {
+            // the decision may come before those of older transactions, keep its place
+            pt.setResultReservation(executor.reserve(key));
+        }
+
+        if (batchPreparer != null) {
+            // one call at a time, already in order
+            batchPreparer.add(pt);
+        }
+        else {
+            executor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    pt.execute();
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the ordering key of a transaction, the key of its first query
+     * @param pt
+     * @return null when unordered
+     */
+    private Object getOrderingKey(ParticipantTransaction pt) {
+        IOrderingKey<Object> ok = orderingKey;
+
+        if (ok == null) {
+            return null;
+        }
+
+        try {
+            List<Object> queries = pt.getQueries();
+
+            return queries.isEmpty() ? null : ok.getOrderingKey(queries.get(0));
+        }
+        catch (IOException e) {
+            // execute will refuse it anyway
+            return null;
+        }
+    }
+
+    /**
+     * Runs a task which may block (user handlers) off the zk event thread
+     * @param task
+     */
+    void dispatch(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Gives a transaction's result to the handler off the zk event thread, after
+     * the results reserved before it, if any
+     * @param reservation as set by prepare, may be null
+     * @param task
+     */
+    void deliverResult(Object reservation, Runnable task) {
+        if (reservation == null) {
+            executor.execute(task);
+        }
+        else {
+            executor.complete(reservation, task);
+        }
+    }
+
+    /**
+     * Runs watch-driven work (member and transaction list updates, which
+     * read from zookeeper synchronously) off the zk event thread, one task
+     * at a time in arrival order. Other watches on the session don't wait for it.
+     * @param task
+     */
+    private void onEventStage(Runnable task) {
+        try {
+            eventStage.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // we left the group meanwhile
+        }
+    }
+
+    /**
+     * A single thread which, like the transaction workers, goes away when idle
+     */
+    private static ExecutorService newEventStage() {
+        ThreadPoolExecutor stage = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                                                          new LinkedBlockingQueue<Runnable>());
+        stage.allowCoreThreadTimeOut(true);
+
+        return stage;
+    }
+
+    /**
+     * Get a copy of the transactions we are coordinating
+     */
+    private List<CoordinatorTransaction> getOngoingTransactions() {
+        synchronized (ongoingTransactions) {
+            return new ArrayList<CoordinatorTransaction>(ongoingTransactions);
+        }
+    }
+
+    /**
+     * Called by a coordinator transaction once it has decided
      * @param transaction
      */
-    private void queueTransaction(BaseTransaction transaction) {
-        synchronized (this.transactionSyncLock) {
-            // TODO review this call - execute may run on this thread, we'd like to avoid that and queue calls
-            threadPool.execute(transaction);
+    void transactionFinished(CoordinatorTransaction transaction) {
+        synchronized (ongoingTransactions) {
+            ongoingTransactions.remove(transaction);
         }
     }
 
@@ -293,6 +462,21 @@ public final class TransactionGroup {
         return zkClient;
     }
 
+    /**
+     * Package visibility codec for transaction queries
+     * @return
+     */
+    QueryCodec<Object> getQueryCodec() {
+        return queryCodec;
+    }
+
+    /**
+     * Get counters about this member's transactions
+     */
+    public TransactionStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Get a collection of member in this
      */
@@ -322,6 +506,9 @@ public final class TransactionGroup {
             return;
         }
 
+        // what is still buffered goes while we can coordinate it
+        setGroupCommit(0, 0, TimeUnit.MILLISECONDS);
+
         try {
             zkClient.delete(me.getZnodePath(), -1);
         }
@@ -330,11 +517,19 @@ public final class TransactionGroup {
         }
 
         disposed = true;
-        zkClient = null;
         watcher.die();
-        watcher = null;
-        members = null;
-        me = null;
+
+        // updates already queued on the event stage may still use these, clear them after
+        onEventStage(new Runnable() {
+            @Override
+            public void run() {
+                zkClient = null;
+                watcher = null;
+                members = null;
+                me = null;
+            }
+        });
+        eventStage.shutdown();
     }
 
     /**
@@ -346,17 +541,144 @@ public final class TransactionGroup {
      * @throws InterruptedException
      */
     public ITransaction BeginTransaction(Serializable query, List<GroupMember> allowedParticipants) throws InterruptedException {
+        ByteBuffer encoded;
+
+        try {
+            encoded = queryCodec.encode(query);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Could not encode query: " + e.getMessage(), e);
+        }
+        catch (ClassCastException e) {
+            throw new IllegalArgumentException("Query type does not match this group's codec", e);
+        }
+
+        return BeginTransaction(encoded, allowedParticipants);
+    }
+
+    /**
+     * Call for a distributed transaction whose query is already encoded.
+     * The remaining bytes of query are stored as they are, so they must be
+     * readable by this group's codec (wrap a byte[] with ByteBuffer.wrap).
+     * @param query encoded query
+     * @param allowedParticipants group members allowed to participated the transaction. Use null for an everyone transaction.
+     * @return transaction object for manipulating the query
+     * @throws InterruptedException
+     */
+    public ITransaction BeginTransaction(ByteBuffer query, List<GroupMember> allowedParticipants) throws InterruptedException {
+        // don't add more while this member is behind on its own work
+        executor.awaitCapacity();
+
+        GroupCommit gc = groupCommit;
+
+        if (allowedParticipants == null && gc != null) {
+            return gc.add(query);
+        }
+
         if (allowedParticipants == null) {
             allowedParticipants = getMembers();
         }
 
-        CoordinatorTransaction ct = new CoordinatorTransaction(query, me, allowedParticipants);
+        return begin(new CoordinatorTransaction(query, me, allowedParticipants), allowedParticipants);
+    }
+
+    /**
+     * Begins an everyone transaction running a batch of queries
+     * @param queries encoded queries
+     * @return the batch transaction
+     */
+    ITransaction beginBatch(List<ByteBuffer> queries) {
+        List<GroupMember> allowedParticipants = getMembers();
+
+        return begin(new CoordinatorTransaction(queries, me, allowedParticipants), allowedParticipants);
+    }
+
+    private ITransaction begin(CoordinatorTransaction ct, List<GroupMember> allowedParticipants) {
+        synchronized (ongoingTransactions) {
+            ongoingTransactions.add(ct);
+        }
+
+        // someone may have left between reading the member list and now, we would not be told again
+        List<GroupMember> current = getMembers();
+        for (GroupMember gm : allowedParticipants) {
+            if (!current.contains(gm)) {
+                ct.participantLeft(gm.getName());
+            }
+        }
 
-        queueTransaction(ct);
+        ct.start();
 
         return ct;
     }
 
+    /**
+     * Turns group commit on: everyone transactions (those begun with a null
+     * participant list) are buffered and run as batches, one transaction per batch,
+     * so many small queries share a znode and a vote round. A batch leaves as soon
+     * as the one before it is decided, once it holds maxBatch queries, or once its
+     * first query waited maxDelay.
+     * <p/>
+     * Each query still gets its own {@link ITransaction}, but the queries of a
+     * batch commit or abort together. On participants, the handler runs them in
+     * order under the batch's transaction ID and gets one result call; the first
+     * query it refuses aborts the batch. Encoded queries given to
+     * {@link #BeginTransaction(ByteBuffer, List)} are read when their batch leaves.
+     * Every member must know about batches. A member which can't read a
+     * transaction votes to abort it, but members from before batches (and
+     * before that vote) don't vote at all: a batch waits on them until they
+     * leave the group.
+     * @param maxBatch most queries in a batch, 1 or less turns group commit off
+     * @param maxDelay longest a query waits while another batch is in flight, 0 for
+     * until it is decided
+     * @param unit unit of maxDelay
+     */
+    public synchronized void setGroupCommit(int maxBatch, long maxDelay, TimeUnit unit) {
+        GroupCommit old = groupCommit;
+
+        groupCommit = maxBatch > 1 ? new GroupCommit(this, maxBatch, unit.toNanos(maxDelay)) : null;
+
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Bounds the threads running this member's handler calls (execute and result)
+     * and the work waiting for them. While queueCapacity tasks or more wait,
+     * BeginTransaction waits too, so a member which can't keep up stops adding
+     * transactions instead of queueing them without end; work coming from other
+     * members is never refused. Don't begin transactions from the handler when every
+     * thread could end up waiting there. Defaults to 16 threads and 1024 tasks.
+     * @param threads most threads, at least 1
+     * @param queueCapacity most waiting tasks before BeginTransaction waits, at least 1
+     */
+    public void setExecution(int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Need at least 1 thread and 1 queued task, got "
+                                               + threads + " and " + queueCapacity);
+        }
+
+        executor.setBounds(threads, queueCapacity);
+    }
+
+    /**
+     * Turns per-key ordering on: transactions we take part in whose queries have
+     * the same key are executed, and their results given, one at a time in
+     * transaction ID order, while those of other keys run in parallel. A group
+     * commit batch is keyed by its first query. Queries are decoded once more
+     * on the zk event thread to get their key.
+     * A batch handler (see {@link IBatchTransactionHandler}) is always called in
+     * order, only its results are ordered by key. A transaction still undecided
+     * after a minute stops holding back the results behind it; its own result
+     * comes out of order then.
+     * @param orderingKey key of a query, null to turn ordering off
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void setOrderingKey(IOrderingKey<T> orderingKey) {
+        // queries only flow between the codec, the handler and the key, all of the same T
+        this.orderingKey = (IOrderingKey<Object>) orderingKey;
+    }
+
     /**
      * Joins an existing transaction group or creates a new one.
      * @param groupPath grouping pathname
@@ -368,7 +690,28 @@ public final class TransactionGroup {
      */
     public static TransactionGroup joinGroup(String groupPath,
                                              ZooKeeper zkClient, ITransactionHandler handler) throws GroupException, InterruptedException {
-        TransactionGroup g = new TransactionGroup(groupPath, zkClient, handler);
+        return joinGroup(groupPath, zkClient, new SerializableQueryCodec(), handler);
+    }
+
+    /**
+     * Joins an existing transaction group or creates a new one, using a
+     * custom codec for transaction queries. Every member of a group must
+     * use the same codec.
+     * @param groupPath grouping pathname
+     * @param zkClient a earlier connected zk client
+     * @param queryCodec codec for transaction queries
+     * @param handler a transaction handler for executing transactions
+     * @return a TransactionGroup object for managing transactions with
+     * @throws GroupException when zkClient is already a member of groupPath
+     * @throws InterruptedException
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> TransactionGroup joinGroup(String groupPath, ZooKeeper zkClient,
+                                                 QueryCodec<T> queryCodec, ITypedTransactionHandler<T> handler) throws GroupException, InterruptedException {
+        // queries only flow between the codec and the handler, both of the same T
+        TransactionGroup g = new TransactionGroup(groupPath, zkClient,
+                                                  (QueryCodec<Object>) queryCodec,
+                                                  (ITypedTransactionHandler<Object>) handler);
 
         if (zkClient.getState() != States.CONNECTED) {
             throw new InvalidParameterException("zkClient is not connected.");
@@ -389,8 +732,8 @@ public final class TransactionGroup {
      *
      */
     private class TransactionGroupWatcher implements Watcher {
-        private TransactionGroup group;
-        private boolean die;
+        private volatile TransactionGroup group;
+        private volatile boolean die;
 
         public TransactionGroupWatcher(TransactionGroup group) {
             this.group = group;
@@ -399,9 +742,10 @@ public final class TransactionGroup {
 
         /***
          * Process group membership events
+         * @param group
          * @param event
          */
-        private void processGroupMembers(WatchedEvent event) {
+        private void processGroupMembers(TransactionGroup group, WatchedEvent event) {
             if (event.getType() == EventType.NodeChildrenChanged) {
                 try {
                     group.updateMembers();
@@ -414,15 +758,11 @@ public final class TransactionGroup {
 
         /**
          * Process transaction's events
+         * @param group
          * @param event
          */
-        private void processTransactions(WatchedEvent event) {
-            try {
-                group.updateTransactions();
-            }
-            catch (InterruptedException e) {
-                // TODO: do something - this is critical, we need to reestablish the watcher
-            }
+        private void processTransactions(TransactionGroup group, WatchedEvent event) {
+            group.updateTransactions();
         }
 
         /**
@@ -435,18 +775,38 @@ public final class TransactionGroup {
 
         @Override
           public void process(WatchedEvent event) {
-            if (die || event.getType() == EventType.None) {
+            // die() clears our reference, queued work keeps its own
+            final TransactionGroup group = this.group;
+
+            // die() may run on another thread meanwhile, only use what we captured
+            if (group == null || die || event.getType() == EventType.None) {
                 return;
             }
 
+            long start = System.nanoTime();
+            final WatchedEvent e = event;
+
+            group.onEventStage(new Runnable() {
+                @Override
+                public void run() {
+                    if (!die) {
+                        handle(group, e);
+                    }
+                }
+            });
+
+            group.getStatistics().eventThreadDwell(System.nanoTime() - start);
+        }
+
+        private void handle(TransactionGroup group, WatchedEvent event) {
             String fullPath = event.getPath();
             String path = fullPath.substring(fullPath.lastIndexOf('/') + 1);
 
             if (path.equals(TransactionGroup.groupZnode)) {
-                processGroupMembers(event);
+                processGroupMembers(group, event);
             }
             else if (path.equals(TransactionGroup.transactionZnode)) {
-                processTransactions(event);
+                processTransactions(group, event);
             }
             else {
                 // TODO log programming error? lol
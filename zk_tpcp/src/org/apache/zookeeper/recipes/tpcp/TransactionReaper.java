@@ -0,0 +1,515 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Background garbage collector for decided transaction znodes.
+ *
+ * Every member may start one, they elect a leader through an ephemeral znode
+ * and only the leader reaps. Every interval the leader looks at the transactions
+ * from the oldest on and deletes (participant nodes first, then the transaction
+ * znode) those which:
+ * <ul>
+ * <li>are not among the newest retainCount transactions,</li>
+ * <li>are older than retainMillis (znode ctime, so mind clock skew),</li>
+ * <li>are decided: the coordinator wrote COMMITTED or ABORTED, or its node is gone,</li>
+ * <li>are finished: every participant node holds COMMITTED or ABORTED, or is gone.
+ * Participants write the decision on their node once they learn it, one which
+ * hasn't would take the coordinator node deletion for a crash and abort.</li>
+ * </ul>
+ * Transactions of members which don't write what they learned are never reaped.
+ * So that they don't make every pass costlier, one found unfinished is looked at
+ * again after an interval, then after twice as long each time, up to
+ * maxRecheckIntervals intervals.
+ *
+ * Deletes are sent in batches of batchSize and paced to maxDeletesPerSecond, the
+ * reads of a pass are paced to maxReadsPerSecond.
+ * What was reclaimed shows on the group's {@link TransactionStatistics}.
+ *
+ */
+public class TransactionReaper {
+    static final int maxRecheckIntervals = 64;
+
+    private TransactionGroup group;
+    private ZooKeeper zkClient;
+    private String reaperPath;
+    private String transactionPath;
+    private byte[] myName;
+
+    private int retainCount;
+    private long retainMillis;
+    private int batchSize;
+    private int maxDeletesPerSecond;
+    private int maxReadsPerSecond;
+    private long intervalMillis;
+
+    private volatile boolean stopped;
+    private volatile boolean leader;
+    private Thread thread;
+    private Object syncLock;
+    private ElectionWatcher watcher;
+
+    /** transactions found unfinished -> when to look at them again, only used by the reaper thread */
+    private Map<String, Recheck> unfinished;
+
+    /** reads of the current pass and when it began, only used by the reaper thread */
+    private int passReads;
+    private long passStart;
+
+    /**
+     * @param group group whose transactions are reaped
+     * @param retainCount how many of the newest transactions are always kept
+     * @param retainMillis how long a transaction is kept after it was begun
+     */
+    public TransactionReaper(TransactionGroup group, int retainCount, long retainMillis) {
+        this.group = group;
+        this.zkClient = group.getZkClient();
+        this.reaperPath = group.getGroupPath() + "/" + TransactionGroup.reaperZnode;
+        this.transactionPath = group.getGroupPath() + "/" + TransactionGroup.transactionZnode;
+        this.myName = Long.toString(zkClient.getSessionId()).getBytes();
+
+        this.retainCount = retainCount;
+        this.retainMillis = retainMillis;
+        this.batchSize = 100;
+        this.maxDeletesPerSecond = 500;
+        this.maxReadsPerSecond = 1000;
+        this.intervalMillis = 10000L;
+
+        this.stopped = false;
+        this.leader = false;
+        this.syncLock = new Object();
+        this.watcher = new ElectionWatcher();
+        this.unfinished = new HashMap<String, Recheck>();
+    }
+
+    /**
+     * Set how many deletes are sent at once (default 100)
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the delete rate limit (default 500/s)
+     * @param maxDeletesPerSecond
+     */
+    public void setMaxDeletesPerSecond(int maxDeletesPerSecond) {
+        this.maxDeletesPerSecond = maxDeletesPerSecond;
+    }
+
+    /**
+     * Set the read rate limit of a pass (default 1000/s)
+     * @param maxReadsPerSecond
+     */
+    public void setMaxReadsPerSecond(int maxReadsPerSecond) {
+        this.maxReadsPerSecond = maxReadsPerSecond;
+    }
+
+    /**
+     * Set the time between reaping passes (default 10s)
+     * @param intervalMillis
+     */
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * True if this member is the one reaping
+     */
+    public boolean isLeader() {
+        return leader;
+    }
+
+    /**
+     * Joins the election and starts reaping once elected, in a background thread.
+     * A stopped reaper can't be started again.
+     */
+    public synchronized void start() {
+        if (thread != null || stopped) {
+            return;
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "TransactionReaper-" + group.getGroupPath());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops reaping and steps down, so another member takes over.
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+
+        if (t == null) {
+            return;
+        }
+
+        stopped = true;
+        wakeUp();
+        t.join();
+
+        if (leader) {
+            leader = false;
+
+            try {
+                zkClient.delete(reaperPath, -1);
+            }
+            catch (KeeperException e) {
+                // we may have lost it already, the session expiring takes care of it
+            }
+        }
+    }
+
+    private void work() {
+        while (!stopped) {
+            try {
+                if (elect()) {
+                    reap();
+                    sleep(intervalMillis);
+                }
+                else {
+                    // wait for the leader node to go away
+                    sleep(intervalMillis);
+                }
+            }
+            catch (KeeperException e) {
+                // connection loss, session expiration... we're not sure we lead anymore
+                System.out.println("Transaction reaper error on '" + transactionPath + "': " + e.getMessage());
+                leader = false;
+                sleepQuietly();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tries to become (or checks we still are) the leader
+     * @return true if we are the leader
+     */
+    private boolean elect() throws KeeperException, InterruptedException {
+        try {
+            zkClient.create(reaperPath, myName, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            leader = true;
+            return true;
+        }
+        catch (KeeperException e) {
+            if (e.code() != Code.NODEEXISTS) {
+                throw e;
+            }
+        }
+
+        // someone leads, maybe us
+        Stat s = new Stat();
+
+        try {
+            zkClient.getData(reaperPath, watcher, s);
+            leader = s.getEphemeralOwner() == zkClient.getSessionId();
+        }
+        catch (KeeperException e) {
+            if (e.code() != Code.NONODE) {
+                throw e;
+            }
+
+            // the leader just left, try again right away
+            leader = false;
+            return elect();
+        }
+
+        return leader;
+    }
+
+    /**
+     * One reaping pass, oldest transactions first
+     */
+    private void reap() throws KeeperException, InterruptedException {
+        passStart = System.currentTimeMillis();
+        passReads = 1;
+
+        List<String> transactions = zkClient.getChildren(transactionPath, false);
+
+        BaseTransaction.sortTransactionList(transactions);
+
+        // forget those reaped by someone else
+        unfinished.keySet().retainAll(new HashSet<String>(transactions));
+
+        int candidates = transactions.size() - retainCount;
+        long now = System.currentTimeMillis();
+
+        List<Reclaim> batch = new ArrayList<Reclaim>(batchSize);
+
+        for (int i = 0; i < candidates && !stopped; i++) {
+            Recheck recheck = unfinished.get(transactions.get(i));
+
+            if (recheck != null && now < recheck.at) {
+                // it was past the retention window already
+                continue;
+            }
+
+            String path = transactionPath + "/" + transactions.get(i);
+            Stat s = new Stat();
+            byte[] zdata;
+            List<String> children;
+
+            paceReads();
+
+            try {
+                passReads += 2;
+                zdata = zkClient.getData(path, false, s);
+                children = zkClient.getChildren(path, false);
+            }
+            catch (KeeperException e) {
+                if (e.code() == Code.NONODE) {
+                    // someone else reaped it
+                    continue;
+                }
+                throw e;
+            }
+
+            // transactions are created in order, the rest is even younger
+            if (now - s.getCtime() < retainMillis) {
+                break;
+            }
+
+            TransactionData data = TransactionData.readByteArray(zdata);
+
+            if (data == null || !isDecided(path, data.getCoordinatorID(), children)
+                || !participantsFinished(path, children)) {
+                unfinished.put(transactions.get(i), recheckLater(recheck, now));
+                continue;
+            }
+
+            unfinished.remove(transactions.get(i));
+
+            // participant nodes first, zookeeper won't delete a znode with children
+            // (their data, a short state name, isn't read so it isn't counted)
+            for (String c : children) {
+                batch.add(new Reclaim(path + "/" + c, c.length(), false));
+            }
+
+            batch.add(new Reclaim(path, transactions.get(i).length() + s.getDataLength(), true));
+
+            if (batch.size() >= batchSize) {
+                delete(batch);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            delete(batch);
+        }
+    }
+
+    /**
+     * True if the coordinator decided, or is gone (so everyone aborted)
+     */
+    private boolean isDecided(String path, String coordinatorID, List<String> children) throws KeeperException, InterruptedException {
+        if (coordinatorID == null || !children.contains(coordinatorID)) {
+            return true;
+        }
+
+        try {
+            passReads++;
+            TransactionState state = TransactionState.parse(new String(zkClient.getData(path + "/" + coordinatorID, false, null)));
+
+            return state == TransactionState.COMMITTED || state == TransactionState.ABORTED;
+        }
+        catch (KeeperException e) {
+            if (e.code() == Code.NONODE) {
+                return true;
+            }
+            throw e;
+        }
+        catch (IllegalArgumentException e) {
+            // not a state we know
+            return false;
+        }
+    }
+
+    /**
+     * True if every participant node holds a final state or is gone (crashed)
+     */
+    private boolean participantsFinished(String path, List<String> children) throws KeeperException, InterruptedException {
+        for (String c : children) {
+            try {
+                passReads++;
+                TransactionState state = TransactionState.parse(new String(zkClient.getData(path + "/" + c, false, null)));
+
+                if (state != TransactionState.COMMITTED && state != TransactionState.ABORTED) {
+                    return false;
+                }
+            }
+            catch (KeeperException e) {
+                if (e.code() != Code.NONODE) {
+                    throw e;
+                }
+            }
+            catch (IllegalArgumentException e) {
+                // not a state we know
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Schedules the next look at an unfinished transaction, twice as far as the last one
+     * @param last the previous schedule, null if it is the first time
+     * @param now
+     */
+    private Recheck recheckLater(Recheck last, long now) {
+        long delay = last == null ? intervalMillis : Math.min(last.delay * 2, intervalMillis * maxRecheckIntervals);
+
+        return new Recheck(now + delay, delay);
+    }
+
+    /**
+     * Waits until the reads of this pass so far fit the read rate limit
+     */
+    private void paceReads() throws InterruptedException {
+        if (maxReadsPerSecond <= 0) {
+            return;
+        }
+
+        long minMillis = passReads * 1000L / maxReadsPerSecond;
+        long elapsed = System.currentTimeMillis() - passStart;
+
+        if (elapsed < minMillis) {
+            Thread.sleep(minMillis - elapsed);
+        }
+    }
+
+    /**
+     * Sends a batch of deletes at once, waits for them and for the rate limit.
+     * Nodes must come children first.
+     */
+    private void delete(List<Reclaim> nodes) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        final CountDownLatch done = new CountDownLatch(nodes.size());
+        final TransactionStatistics statistics = group.getStatistics();
+
+        // zookeeper runs them in order, children are gone by the time their parent's turn comes
+        for (Reclaim r : nodes) {
+            zkClient.delete(r.path, -1, new VoidCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx) {
+                    // NONODE: someone did it for us, NOTEMPTY: a late participant, next pass
+                    if (rc == Code.OK.intValue()) {
+                        Reclaim r = (Reclaim) ctx;
+                        statistics.nodeReaped(r.transaction, r.bytes);
+                    }
+                    done.countDown();
+                }
+            }, r);
+        }
+
+        done.await();
+
+        if (maxDeletesPerSecond > 0) {
+            long minMillis = nodes.size() * 1000L / maxDeletesPerSecond;
+            long elapsed = System.currentTimeMillis() - start;
+
+            if (elapsed < minMillis) {
+                Thread.sleep(minMillis - elapsed);
+            }
+        }
+    }
+
+    private void sleep(long millis) throws InterruptedException {
+        synchronized (syncLock) {
+            if (!stopped) {
+                syncLock.wait(millis);
+            }
+        }
+    }
+
+    private void sleepQuietly() {
+        try {
+            sleep(intervalMillis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void wakeUp() {
+        synchronized (syncLock) {
+            syncLock.notifyAll();
+        }
+    }
+
+    /////////////////////////////
+    //// WATCHER  ///////////////
+    /////////////////////////////
+
+    /**
+     * Wakes the reaper thread when the leader goes away
+     */
+    private class ElectionWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == EventType.NodeDeleted) {
+                wakeUp();
+            }
+        }
+    }
+
+    /**
+     * When to look at an unfinished transaction again
+     */
+    private static class Recheck {
+        final long at;
+        final long delay;
+
+        Recheck(long at, long delay) {
+            this.at = at;
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * A znode to delete
+     */
+    private static class Reclaim {
+        final String path;
+        final long bytes;
+        final boolean transaction;
+
+        Reclaim(String path, long bytes, boolean transaction) {
+            this.path = path;
+            this.bytes = bytes;
+            this.transaction = transaction;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package org.apache.zookeeper.recipes.tpcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters kept by a transaction group about its transactions' zookeeper usage.
+ * Values are live, they keep growing as transactions run.
+ *
+ */
+public class TransactionStatistics {
+    private final AtomicLong coordinated = new AtomicLong();
+    private final AtomicLong participated = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong roundTripsSaved = new AtomicLong();
+    private final AtomicLong reapedTransactions = new AtomicLong();
+    private final AtomicLong reapedNodes = new AtomicLong();
+    private final AtomicLong reapedBytes = new AtomicLong();
+    private final AtomicLong eventThreadVisits = new AtomicLong();
+    private final AtomicLong eventThreadNanos = new AtomicLong();
+    private final AtomicLong maxEventThreadNanos = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedQueries = new AtomicLong();
+    private final AtomicLong prepareBatches = new AtomicLong();
+    private final AtomicLong batchedPrepares = new AtomicLong();
+
+    /**
+     * A transaction we coordinated reached its decision
+     */
+    void transactionCoordinated() {
+        coordinated.incrementAndGet();
+    }
+
+    /**
+     * A transaction we participated on reached its decision
+     */
+    void transactionParticipated() {
+        participated.incrementAndGet();
+    }
+
+    /**
+     * A transaction sent a request to zookeeper
+     */
+    void roundTrip() {
+        roundTrips.incrementAndGet();
+    }
+
+    /**
+     * A transaction did without a request it used to send (e.g. an exists before a getData)
+     */
+    void roundTripSaved() {
+        roundTripsSaved.incrementAndGet();
+    }
+
+    /**
+     * The reaper deleted a znode
+     * @param transaction true for a transaction znode, false for a participant node
+     * @param bytes name and data bytes reclaimed
+     */
+    void nodeReaped(boolean transaction, long bytes) {
+        if (transaction) {
+            reapedTransactions.incrementAndGet();
+        }
+        reapedNodes.incrementAndGet();
+        reapedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * A watcher or callback of ours held the zk event thread for a while;
+     * every other watch on the session waited that long
+     * @param nanos time spent on the event thread
+     */
+    void eventThreadDwell(long nanos) {
+        eventThreadVisits.incrementAndGet();
+        eventThreadNanos.addAndGet(nanos);
+
+        long max = maxEventThreadNanos.get();
+        while (nanos > max && !maxEventThreadNanos.compareAndSet(max, nanos)) {
+            max = maxEventThreadNanos.get();
+        }
+    }
+
+    /**
+     * Group commit began a transaction for a batch of queries
+     * @param queries queries in the batch
+     */
+    void batchBegun(int queries) {
+        batches.incrementAndGet();
+        batchedQueries.addAndGet(queries);
+    }
+
+    /**
+     * A batch handler voted on many transactions in one call
+     * @param transactions transactions in the call
+     */
+    void prepareBatch(int transactions) {
+        prepareBatches.incrementAndGet();
+        batchedPrepares.addAndGet(transactions);
+    }
+
+    /**
+     * Get how many calls our batch handler got
+     * @return
+     */
+    public long getPrepareBatches() {
+        return prepareBatches.get();
+    }
+
+    /**
+     * Get the mean number of transactions per batch handler call
+     * @return
+     */
+    public double getMeanPrepareBatchSize() {
+        long count = getPrepareBatches();
+
+        return count == 0 ? 0 : (double) batchedPrepares.get() / count;
+    }
+
+    /**
+     * Get how many batches group commit began
+     * @return
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Get how many queries went in those batches
+     * @return
+     */
+    public long getBatchedQueries() {
+        return batchedQueries.get();
+    }
+
+    /**
+     * Get the mean number of queries per batch
+     * @return
+     */
+    public double getMeanBatchSize() {
+        long count = getBatches();
+
+        return count == 0 ? 0 : (double) getBatchedQueries() / count;
+    }
+
+    /**
+     * Get how many times our watchers and callbacks ran on the zk event thread
+     * @return
+     */
+    public long getEventThreadVisits() {
+        return eventThreadVisits.get();
+    }
+
+    /**
+     * Get the total time (ns) our watchers and callbacks held the zk event thread
+     * @return
+     */
+    public long getEventThreadNanos() {
+        return eventThreadNanos.get();
+    }
+
+    /**
+     * Get the longest time (ns) one of our watchers or callbacks held the zk event thread
+     * @return
+     */
+    public long getMaxEventThreadNanos() {
+        return maxEventThreadNanos.get();
+    }
+
+    /**
+     * Get the mean time (ns) our watchers and callbacks held the zk event thread
+     * @return
+     */
+    public double getMeanEventThreadNanos() {
+        long visits = getEventThreadVisits();
+
+        return visits == 0 ? 0 : (double) getEventThreadNanos() / visits;
+    }
+
+    /**
+     * Get how many transactions we coordinated
+     * @return
+     */
+    public long getCoordinated() {
+        return coordinated.get();
+    }
+
+    /**
+     * Get how many transactions we participated on
+     * @return
+     */
+    public long getParticipated() {
+        return participated.get();
+    }
+
+    /**
+     * Get how many requests transactions sent to zookeeper
+     * @return
+     */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    /**
+     * Get how many requests transactions did without
+     * @return
+     */
+    public long getRoundTripsSaved() {
+        return roundTripsSaved.get();
+    }
+
+    /**
+     * Get how many transaction znodes our reaper deleted
+     * @return
+     */
+    public long getReapedTransactions() {
+        return reapedTransactions.get();
+    }
+
+    /**
+     * Get how many znodes (transactions and their participant nodes) our reaper deleted
+     * @return
+     */
+    public long getReapedNodes() {
+        return reapedNodes.get();
+    }
+
+    /**
+     * Get how many bytes our reaper reclaimed: znode names and transaction data
+     * (participant node data isn't read, so it isn't counted)
+     * @return
+     */
+    public long getReapedBytes() {
+        return reapedBytes.get();
+    }
+
+    /**
+     * Get requests sent per finished transaction (coordinated or participated)
+     * @return
+     */
+    public double getRoundTripsPerTransaction() {
+        return perTransaction(getRoundTrips());
+    }
+
+    /**
+     * Get requests saved per finished transaction (coordinated or participated)
+     * @return
+     */
+    public double getRoundTripsSavedPerTransaction() {
+        return perTransaction(getRoundTripsSaved());
+    }
+
+    private double perTransaction(long count) {
+        long transactions = getCoordinated() + getParticipated();
+
+        return transactions == 0 ? 0 : (double) count / transactions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("coordinated=%d participated=%d roundTrips/txn=%.2f saved/txn=%.2f reaped=%d nodes=%d bytes=%d"
+                             + " eventThread mean=%.1fus max=%.1fus batches=%d meanBatch=%.1f"
+                             + " meanPrepareBatch=%.1f",
+                             getCoordinated(), getParticipated(),
+                             getRoundTripsPerTransaction(), getRoundTripsSavedPerTransaction(),
+                             getReapedTransactions(), getReapedNodes(), getReapedBytes(),
+                             getMeanEventThreadNanos() / 1000.0, getMaxEventThreadNanos() / 1000.0,
+                             getBatches(), getMeanBatchSize(), getMeanPrepareBatchSize());
+    }
+}